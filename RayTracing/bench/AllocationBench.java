@@ -0,0 +1,85 @@
+/* class AllocationBench
+ * Measures how much memory rendering allocates per primary ray, once the
+ * render has warmed up (the hot path should allocate nothing per ray)
+ *
+ * Usage: java AllocationBench <scenefile> [-res <width height>] [-runs n]
+ */
+import java.lang.management.*;
+
+class AllocationBench
+{
+    public static void main(String arguments[]) throws Throwable
+    {
+        String inputFileName = null;
+        int width  = 256;
+        int height = 256;
+        int runs   = 5;
+
+        for (int i=0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-res")==0) {
+                width  = Integer.parseInt(arguments[++i]);
+                height = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-runs")==0) {
+                runs   = Integer.parseInt(arguments[++i]);
+            } else {
+                inputFileName = arguments[i];
+            }
+        }
+
+        if (inputFileName == null) {
+            System.out.println("Usage: java AllocationBench <scenefile> "+
+                               "[-res <width height>] [-runs n]");
+            System.exit(0);
+        }
+
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            System.err.println("Allocated memory per thread is not "+
+                               "measurable on this JVM");
+            System.exit(1);
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        Trace.verbose = false;
+
+        Scene s = new Scene();
+        Parser p = new Parser(s);
+        p.readFile(inputFileName);
+        s.setup();
+
+        // Warm up (this also sets up the camera, image and the scratch
+        // space of this thread)
+        s.render(width, height, false);
+        s.renderTile(0, 0, width, height);
+
+        // Render the whole image on this thread, so all the allocation is
+        // seen by the thread's counter
+        long rays = (long)width * height;
+        long thread = Thread.currentThread().getId();
+        double best = Double.POSITIVE_INFINITY;
+
+        for (int run = 0; run < runs; run++) {
+            long startBytes = threadBean.getThreadAllocatedBytes(thread);
+            long startTime  = System.nanoTime();
+
+            s.renderTile(0, 0, width, height);
+
+            long time  = System.nanoTime() - startTime;
+            long bytes = threadBean.getThreadAllocatedBytes(thread) -
+                         startBytes;
+            double perRay = (double)bytes / rays;
+            best = Math.min(best, perRay);
+
+            System.out.println("run " + run + ": " + bytes + " bytes, " +
+                               String.format("%.3f", perRay) +
+                               " bytes/ray, " +
+                               String.format("%.1f", time / (double)rays) +
+                               " ns/ray");
+        }
+
+        System.out.println(inputFileName + " " + width + "x" + height +
+                           ": " + String.format("%.3f", best) +
+                           " bytes/ray (best of " + runs + ")");
+    }
+}
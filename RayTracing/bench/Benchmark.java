@@ -0,0 +1,106 @@
+/* class Benchmark
+ * A small benchmark harness: runs a kernel until it has warmed up, then
+ * times it over many operations and reports the time and the memory
+ * allocated per operation (on the thread running it)
+ */
+import java.lang.management.*;
+
+abstract class Benchmark
+{
+    // Results of the kernels end up here, so the JIT can't discard the
+    // work that produced them
+    static volatile double sink;
+
+    // Time spent warming up and measuring each benchmark (milliseconds)
+    static long warmupMillis  = 300;
+    static long measureMillis = 700;
+
+    // Name of the kernel, and the parameter values it was set up with
+    String name;
+    String params;
+
+    public Benchmark(String name, String params)
+    {
+        this.name   = name;
+        this.params = params;
+    }
+
+    /** run the kernel ops times, and return a value that depends on all
+     *  of their results
+     */
+    abstract double run(int ops);
+
+    //------------------------------------------------------------------------
+
+    /** the measurements of one benchmark */
+    static class Result
+    {
+        String name, params;
+        long ops;
+        double nsPerOp;
+        // (NaN if the JVM can't measure allocation)
+        double bytesPerOp;
+
+        public String toString()
+        {
+            return String.format("%-22s %-36s %10.2f ns/op %10.2f B/op",
+                                 name, params, nsPerOp, bytesPerOp);
+        }
+    }
+
+    /** warm up, then measure this benchmark */
+    Result measure()
+    {
+        // Find a batch size that takes a few milliseconds, warming up
+        // along the way
+        int batch = 1;
+        long warmupEnd = System.nanoTime() + warmupMillis * 1000000L;
+        while (true) {
+            long start = System.nanoTime();
+            sink += run(batch);
+            long end = System.nanoTime();
+
+            if (end - start < 5000000L && batch < (1 << 30))
+                batch *= 2;
+            else if (end >= warmupEnd)
+                break;
+        }
+
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long startBytes = allocatedBytes(thread);
+        long start = System.nanoTime(), end;
+        long measureEnd = start + measureMillis * 1000000L;
+        do {
+            sink += run(batch);
+            ops += batch;
+            end = System.nanoTime();
+        } while (end < measureEnd);
+        long bytes = allocatedBytes(thread) - startBytes;
+
+        Result r = new Result();
+        r.name       = name;
+        r.params     = params;
+        r.ops        = ops;
+        r.nsPerOp    = (double)(end - start) / ops;
+        r.bytesPerOp = startBytes < 0 ? Double.NaN : (double)bytes / ops;
+        return r;
+    }
+
+    /** memory allocated so far by a thread (-1 if it can't be measured) */
+    static long allocatedBytes(long thread)
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean sunBean =
+            (com.sun.management.ThreadMXBean)bean;
+        if (!sunBean.isThreadAllocatedMemorySupported())
+            return -1;
+        if (!sunBean.isThreadAllocatedMemoryEnabled())
+            sunBean.setThreadAllocatedMemoryEnabled(true);
+
+        return sunBean.getThreadAllocatedBytes(thread);
+    }
+}
@@ -0,0 +1,155 @@
+/* class BuildBench
+ * Measures building a large scene in code with SceneBuilder (the same
+ * kind of scene as RenderBench's "stress-N" scenes): the objects added
+ * per second, the heap the scene takes, and the time to set it up (build
+ * its BVH) and the heap it takes then, and optionally renders it.  With
+ * -compact, the shapes are kept in PrimitiveSets (see Scene.compact).
+ *
+ * Usage: java BuildBench [-objects n] [-runs n] [-res <width height>]
+ *                        [-out <file.ppm>] [-compact]
+ */
+import java.lang.management.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class BuildBench
+{
+    public static void main(String arguments[]) throws Throwable
+    {
+        int objects = 1000000;
+        int runs    = 3;
+        int width   = 0;
+        int height  = 0;
+        String outputFileName = null;
+        boolean compact = false;
+
+        for (int i=0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-objects")==0) {
+                objects = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-runs")==0) {
+                runs    = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-res")==0) {
+                width   = Integer.parseInt(arguments[++i]);
+                height  = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-out")==0) {
+                outputFileName = arguments[++i];
+            } else if (arguments[i].compareTo("-compact")==0) {
+                compact = true;
+            } else {
+                System.out.println("Usage: java BuildBench [-objects n] "+
+                                   "[-runs n] [-res <width height>] "+
+                                   "[-out <file.ppm>] [-compact]");
+                System.exit(0);
+            }
+        }
+
+        Trace.verbose = false;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        Scene s = null;
+        for (int run = 0; run < runs; run++) {
+            // (let the last scene go first)
+            s = null;
+            System.gc();
+            long startHeap = memory.getHeapMemoryUsage().getUsed();
+
+            long start = System.nanoTime();
+            s = buildStressScene(objects, new Random(objects), compact);
+            long buildTime = System.nanoTime() - start;
+
+            System.gc();
+            long heap = memory.getHeapMemoryUsage().getUsed() - startHeap;
+
+            start = System.nanoTime();
+            s.setup();
+            long setupTime = System.nanoTime() - start;
+
+            System.gc();
+            long setupHeap = memory.getHeapMemoryUsage().getUsed() -
+                             startHeap;
+
+            System.out.println("run " + run + ": " + objects + " objects, " +
+                               String.format("build %.1f ms", buildTime/1e6) +
+                               String.format(" (%.0f objects/s), ",
+                                             objects / (buildTime/1e9)) +
+                               String.format("%.0f bytes/object, ",
+                                             (double)heap / objects) +
+                               String.format("setup %.1f ms", setupTime/1e6) +
+                               String.format(" (%.0f bytes/object)",
+                                             (double)setupHeap / objects));
+        }
+
+        if (width > 0) {
+            long start = System.nanoTime();
+            RGBImage image = s.render(width, height, false);
+            System.out.println(String.format("render %dx%d: %.1f ms",
+                                             width, height,
+                                             (System.nanoTime()-start)/1e6));
+            if (outputFileName != null)
+                image.write(outputFileName);
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** n randomly placed, rotated and scaled shapes in front of the
+     *  camera, some of them transparent, lit by a point light and a
+     *  directional light (see RenderBench.writeStressScene()), kept in
+     *  PrimitiveSets if compact is set
+     */
+    static Scene buildStressScene(int n, Random random, boolean compact)
+    {
+        SceneBuilder b = new SceneBuilder();
+        b.getScene().setCompact(compact);
+
+        // (spread the shapes out so their density stays about the same)
+        double size = 12.0 * Math.cbrt(n / 1000.0);
+
+        b.translate(0, 0, -2.5 * size);
+
+        Material red = b.material("red");
+        red.setKa(new Vector3d(0.1, 0, 0));
+        red.setKd(new Vector3d(0.8, 0.2, 0.2));
+        red.setKs(new Vector3d(0.3, 0.3, 0.3));
+        red.setShiny(10.0);
+
+        Material glass = b.material("glass");
+        glass.setKa(new Vector3d(0.01, 0.01, 0.01));
+        glass.setKd(new Vector3d(0.1, 0.1, 0.1));
+        glass.setKt(new Vector3d(0.6, 0.7, 0.8));
+
+        Material[] materials = { red, glass, null };
+
+        b.light(new Point3d(size, size, size), new Vector3d(1, 1, 1));
+        b.directionalLight(new Vector3d(-1, 2, 3),
+                           new Vector3d(0.4, 0.4, 0.4));
+
+        for (int i = 0; i < n; i++) {
+            b.push();
+            b.translate(uniform(random, -size, size),
+                        uniform(random, -size, size),
+                        uniform(random, -size, size));
+            b.rotate(uniform(random, 0, 360), uniform(random, -1, 1),
+                     uniform(random, -1, 1), uniform(random, 0.1, 1));
+            b.scale(uniform(random, 0.3, 1.5), uniform(random, 0.3, 1.5),
+                    uniform(random, 0.3, 1.5));
+
+            int shape = random.nextInt(4);
+            Material m = materials[random.nextInt(materials.length)];
+            switch (shape) {
+              case 0:  b.sphere(m);   break;
+              case 1:  b.box(m);      break;
+              case 2:  b.cylinder(m); break;
+              default: b.cone(m);     break;
+            }
+            b.pop();
+        }
+
+        return b.getScene();
+    }
+
+    static double uniform(Random random, double lo, double hi)
+    {
+        return lo + (hi - lo) * random.nextDouble();
+    }
+}
@@ -0,0 +1,426 @@
+/* class KernelBench
+ * Microbenchmarks of the intersection and shading kernels: shape hit
+ * tests, lighting, primary ray generation, reflection/refraction and
+ * texture lookup
+ *
+ * Usage: java KernelBench [-warmup ms] [-time ms] [name...]
+ *  (only the benchmarks whose names contain one of the given names run)
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class KernelBench
+{
+    // Number of distinct inputs each kernel cycles through
+    static final int inputs = 1024;
+
+    // Minimum t value (as in Scene)
+    static final double epsilon = 1e-5;
+
+    public static void main(String arguments[]) throws Exception
+    {
+        List<String> filters = new ArrayList<String>();
+
+        for (int i=0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-warmup")==0) {
+                Benchmark.warmupMillis  = Long.parseLong(arguments[++i]);
+            } else if (arguments[i].compareTo("-time")==0) {
+                Benchmark.measureMillis = Long.parseLong(arguments[++i]);
+            } else {
+                filters.add(arguments[i]);
+            }
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        addHitBenchmarks(benchmarks);
+        addLightBenchmarks(benchmarks);
+        addCameraBenchmarks(benchmarks);
+        addToolsBenchmarks(benchmarks);
+        addImageBenchmarks(benchmarks);
+
+        for (Benchmark b : benchmarks) {
+            boolean selected = filters.isEmpty();
+            for (String f : filters)
+                selected |= b.name.contains(f);
+
+            if (selected)
+                System.out.println(b.measure());
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Shape.hit
+
+    /** Shape.hit (after moving the world space ray to object space, as the
+     *  renderer does) for each shape, with:
+     *   - hit: the fraction of the rays that hit the shape
+     *   - xform: identity or a rotated, scaled and translated shape
+     *   - all: computeAllFields off (t only) or on
+     */
+    static void addHitBenchmarks(List<Benchmark> benchmarks)
+        throws Exception
+    {
+        String[] keywords = { "sphere", "box", "cylinder", "cone" };
+        double[] hitRatios = { 0.0, 0.5, 1.0 };
+        boolean[] onOff = { false, true };
+
+        for (String keyword : keywords) {
+            for (double hitRatio : hitRatios) {
+                for (boolean transformed : onOff) {
+                    for (boolean all : onOff) {
+                        benchmarks.add(new HitBenchmark(keyword, hitRatio,
+                                                        transformed, all));
+                    }
+                }
+            }
+        }
+    }
+
+    static class HitBenchmark extends Benchmark
+    {
+        Shape shape;
+        boolean all;
+        Ray[] rays = new Ray[inputs];
+        Ray objRay = new Ray();
+        ISect isect = new ISect();
+
+        HitBenchmark(String keyword, double hitRatio, boolean transformed,
+                     boolean all)
+            throws Exception
+        {
+            super(shapeName(keyword) + ".hit",
+                  String.format("hit=%3.0f%% xform=%-8s all=%b",
+                                100*hitRatio,
+                                transformed ? "affine" : "identity", all));
+
+            shape = newShape(keyword);
+            this.all = all;
+
+            Matrix4d m = new Matrix4d();
+            m.setIdentity();
+            if (transformed) {
+                Vector3d axis = new Vector3d(1, 1, 0);
+                axis.normalize();
+                Matrix4d r = new Matrix4d();
+                r.setIdentity();
+                r.setRotation(new AxisAngle4d(axis, Math.toRadians(30)));
+                Matrix4d s = new Matrix4d();
+                s.setIdentity();
+                s.m00 = 1.5;  s.m11 = 0.5;  s.m22 = 2.0;
+                m.mul(r, s);
+                m.setTranslation(new Vector3d(1, 2, -3));
+            }
+            shape.setMatrix(m);
+
+            // Rays aimed at a point inside the shape hit it; the others
+            // pass by at a distance of 2 from that point (which is more
+            // than its bounding radius)
+            Point3d center = keyword.equals("cone") ? new Point3d(0, 0, 0.7) :
+                (keyword.equals("cylinder") ? new Point3d(0, 0, 0.5) :
+                 new Point3d());
+            Random random = new Random(1);
+            int hits = (int)Math.round(hitRatio * inputs);
+
+            for (int k = 0; k < inputs; k++) {
+                Vector3d d = randomDirection(random);
+                Point3d target = new Point3d(center);
+                if (k < hits) {
+                    Vector3d jitter = randomDirection(random);
+                    target.scaleAdd(0.1, jitter, target);
+                } else {
+                    Vector3d offset = randomDirection(random);
+                    offset.scaleAdd(-offset.dot(d), d, offset);
+                    offset.normalize();
+                    target.scaleAdd(2.0, offset, target);
+                }
+
+                Point3d origin = new Point3d(target);
+                origin.scaleAdd(-4.0, d, origin);
+
+                // (world space ray)
+                m.transform(origin);
+                m.transform(d);
+                rays[k] = new Ray(origin, d);
+            }
+
+            // (shuffle so the branches can't predict hits and misses)
+            Collections.shuffle(Arrays.asList(rays), random);
+        }
+
+        double run(int ops)
+        {
+            double sum = 0.0;
+            for (int i = 0; i < ops; i++) {
+                shape.toObjectSpace(rays[i & (inputs-1)], objRay);
+                if (shape.hit(objRay, isect, all, epsilon))
+                    sum += isect.getT();
+            }
+            return sum;
+        }
+    }
+
+    static String shapeName(String keyword)
+    {
+        return Character.toUpperCase(keyword.charAt(0)) + keyword.substring(1);
+    }
+
+    /** create a shape (with default parameters) from its scene keyword */
+    static Shape newShape(String keyword) throws Exception
+    {
+        StreamTokenizer empty = new StreamTokenizer(new StringReader("{ }"));
+
+        if (keyword.equals("sphere"))
+            return new Sphere(empty);
+        else if (keyword.equals("box"))
+            return new Box(empty);
+        else if (keyword.equals("cylinder"))
+            return new Cylinder(empty);
+        else
+            return new Cone(empty);
+    }
+
+    static Vector3d randomDirection(Random random)
+    {
+        Vector3d d = new Vector3d();
+        do {
+            d.set(2*random.nextDouble() - 1, 2*random.nextDouble() - 1,
+                  2*random.nextDouble() - 1);
+        } while (d.lengthSquared() > 1.0 || d.lengthSquared() < 1e-6);
+        d.normalize();
+        return d;
+    }
+
+    //------------------------------------------------------------------------
+    // Light.compute
+
+    /** Light.compute at hit points on a sphere, for point and directional
+     *  lights, and materials without texture, with a checker texture and
+     *  with an image texture
+     */
+    static void addLightBenchmarks(List<Benchmark> benchmarks)
+        throws Exception
+    {
+        String[] textures = { "none", "checker", "image" };
+        boolean[] onOff = { false, true };
+
+        for (boolean directional : onOff) {
+            for (String texture : textures) {
+                benchmarks.add(new LightBenchmark(directional, texture));
+            }
+        }
+    }
+
+    static class LightBenchmark extends Benchmark
+    {
+        Light light;
+        ISect[] isects = new ISect[inputs];
+        Ray[] rays = new Ray[inputs];
+        Vector3d tint = new Vector3d(1.0, 0.8, 0.6);
+        Vector3d color = new Vector3d();
+        RenderContext ctx = new RenderContext();
+
+        LightBenchmark(boolean directional, String texture) throws Exception
+        {
+            super("Light.compute",
+                  String.format("light=%-11s texture=%s",
+                                directional ? "directional" : "point",
+                                texture));
+
+            light = new Light(new StreamTokenizer(new StringReader("{ }")));
+            if (directional)
+                light.setDirection(new Vector3d(-1, -2, -1));
+            else
+                light.setPosition(new Point3d(3, 4, 5));
+            light.setAttenuation(new Vector3d(1.0, 0.1, 0.01));
+
+            Material mat = new Material("bench");
+            mat.setKs(new Vector3d(0.5, 0.5, 0.5));
+            mat.setShiny(Double.valueOf(20.0));
+            if (texture.equals("checker")) {
+                Vector<Object> spec = new Vector<Object>();
+                spec.addElement(new Vector3d(1, 0, 0));
+                spec.addElement(new Vector3d(0, 0, 1));
+                spec.addElement(Double.valueOf(8.0));
+                spec.addElement(Double.valueOf(8.0));
+                mat.setCheckerSpec(spec);
+            } else if (texture.equals("image")) {
+                mat.textureImage = randomImage(256, 256, new Random(2));
+            }
+
+            Shape sphere = newShape("sphere");
+            Matrix4d identity = new Matrix4d();
+            identity.setIdentity();
+            sphere.setMatrix(identity);
+            sphere.setMaterialRef(mat);
+
+            // Hit points all over the side of the sphere facing the eye
+            Point3d eye = new Point3d(0, 0, 5);
+            Random random = new Random(3);
+            for (int k = 0; k < inputs; k++) {
+                Point3d target = new Point3d(2*random.nextDouble() - 1,
+                                             2*random.nextDouble() - 1, 0);
+                target.scale(0.7);
+                Vector3d d = new Vector3d();
+                d.sub(target, eye);
+                rays[k] = new Ray(eye, d);
+
+                isects[k] = new ISect();
+                sphere.hit(rays[k], isects[k], true, epsilon);
+            }
+        }
+
+        double run(int ops)
+        {
+            color.set(0.0, 0.0, 0.0);
+            for (int i = 0; i < ops; i++) {
+                int k = i & (inputs-1);
+                light.compute(isects[k], tint, rays[k], ctx, color);
+            }
+            return color.x + color.y + color.z;
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Camera
+
+    static void addCameraBenchmarks(List<Benchmark> benchmarks)
+        throws Exception
+    {
+        final Camera camera = new Camera();
+        camera.setLook(new Vector3d(0.2, -0.1, -1));
+        camera.setup(640, 480);
+
+        benchmarks.add(new Benchmark("Camera.pixelRay", "640x480") {
+            Ray r = new Ray();
+            int i = 0, j = 0;
+
+            double run(int ops)
+            {
+                double sum = 0.0;
+                for (int k = 0; k < ops; k++) {
+                    camera.pixelRay(camera.pixelX(i), camera.pixelY(j), r);
+                    sum += r.getDirection().x;
+
+                    if (++i == camera.width) {
+                        i = 0;
+                        if (++j == camera.height)
+                            j = 0;
+                    }
+                }
+                return sum;
+            }
+        });
+
+        // (one op is one pixel of a 32x32 tile)
+        benchmarks.add(new Benchmark("Camera.pixelRays", "640x480 tile=32") {
+            double[] dirs = new double[3*32*32];
+            int x0 = 0, y0 = 0;
+
+            double run(int ops)
+            {
+                double sum = 0.0;
+                for (int k = 0; k < ops; k += 32*32) {
+                    camera.pixelRays(x0, y0, x0 + 32, y0 + 32, dirs);
+                    sum += dirs[0];
+
+                    x0 += 32;
+                    if (x0 + 32 > camera.width) {
+                        x0 = 0;
+                        y0 += 32;
+                        if (y0 + 32 > camera.height)
+                            y0 = 0;
+                    }
+                }
+                return sum;
+            }
+        });
+    }
+
+    //------------------------------------------------------------------------
+    // Tools
+
+    static void addToolsBenchmarks(List<Benchmark> benchmarks)
+    {
+        final Vector3d[] incident = new Vector3d[inputs];
+        final Vector3d[] normals  = new Vector3d[inputs];
+        Random random = new Random(4);
+
+        for (int k = 0; k < inputs; k++) {
+            normals[k]  = randomDirection(random);
+            incident[k] = randomDirection(random);
+            // (incoming rays point at the surface)
+            if (incident[k].dot(normals[k]) > 0)
+                incident[k].negate();
+        }
+
+        benchmarks.add(new Benchmark("Tools.reflect", "") {
+            Vector3d target = new Vector3d();
+
+            double run(int ops)
+            {
+                double sum = 0.0;
+                for (int i = 0; i < ops; i++) {
+                    int k = i & (inputs-1);
+                    Tools.reflect(target, incident[k], normals[k]);
+                    sum += target.x;
+                }
+                return sum;
+            }
+        });
+
+        benchmarks.add(new Benchmark("Tools.refract", "eta=1/1.5") {
+            Vector3d target = new Vector3d();
+
+            double run(int ops)
+            {
+                double sum = 0.0;
+                for (int i = 0; i < ops; i++) {
+                    int k = i & (inputs-1);
+                    if (Tools.refract(target, incident[k], normals[k],
+                                      1.0, 1.5))
+                        sum += target.x;
+                }
+                return sum;
+            }
+        });
+    }
+
+    //------------------------------------------------------------------------
+    // RGBImage
+
+    static void addImageBenchmarks(List<Benchmark> benchmarks)
+    {
+        final RGBImage image = randomImage(256, 256, new Random(5));
+        final double[] uv = new double[2*inputs];
+        Random random = new Random(6);
+
+        for (int k = 0; k < uv.length; k++)
+            uv[k] = random.nextDouble();
+
+        benchmarks.add(new Benchmark("RGBImage.getSubPixel", "256x256") {
+            Vector3d p = new Vector3d();
+
+            double run(int ops)
+            {
+                double sum = 0.0;
+                for (int i = 0; i < ops; i++) {
+                    int k = 2*(i & (inputs-1));
+                    image.getSubPixel(uv[k], uv[k+1], p);
+                    sum += p.x;
+                }
+                return sum;
+            }
+        });
+    }
+
+    static RGBImage randomImage(int width, int height, Random random)
+    {
+        RGBImage image = new RGBImage(width, height);
+        for (int i = 0; i < width; i++)
+            for (int j = 0; j < height; j++)
+                image.setPixel(i, j, random.nextDouble(), random.nextDouble(),
+                               random.nextDouble());
+        return image;
+    }
+}
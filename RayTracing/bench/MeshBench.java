@@ -0,0 +1,115 @@
+/* class MeshBench
+ * Measures loading a triangle mesh: reading the OBJ file and building its
+ * hierarchy, writing its cache, and mapping the cache (see MeshCache).
+ * By default a sphere of about -triangles triangles (with normals and
+ * texture coordinates) is written to a temporary OBJ file; OBJ files given
+ * on the command line are loaded instead.
+ *
+ * Usage: java MeshBench [-triangles n] [-runs n] [objfile ...]
+ */
+import java.io.*;
+import java.util.*;
+
+class MeshBench
+{
+    public static void main(String arguments[]) throws Throwable
+    {
+        List<String> files = new ArrayList<String>();
+        int triangles = 1000000;
+        int runs      = 3;
+
+        for (int i=0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-triangles")==0) {
+                triangles = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-runs")==0) {
+                runs      = Integer.parseInt(arguments[++i]);
+            } else {
+                files.add(arguments[i]);
+            }
+        }
+
+        Trace.verbose = false;
+
+        if (files.isEmpty()) {
+            File generated = File.createTempFile("meshbench", ".obj");
+            generated.deleteOnExit();
+            new File(MeshCache.cacheName(generated.getPath())).deleteOnExit();
+            writeSphere(generated, triangles);
+            files.add(generated.getPath());
+        }
+
+        for (String fileName : files) {
+            for (int run = 0; run < runs; run++) {
+                // Parse and build (without the cache)
+                MeshCache.enabled = false;
+                long start = System.nanoTime();
+                Mesh m = new Mesh();
+                m.load(fileName);
+                long parseTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                MeshCache.write(m, fileName);
+                long writeTime = System.nanoTime() - start;
+
+                // Map the cache
+                MeshCache.enabled = true;
+                start = System.nanoTime();
+                Mesh mapped = new Mesh();
+                mapped.load(fileName);
+                long mapTime = System.nanoTime() - start;
+
+                System.out.println("run " + run + ": " + m.triangleCount() +
+                                   " triangles, " +
+                                   String.format("parse and build %.1f ms, ",
+                                                 parseTime/1e6) +
+                                   String.format("write cache %.1f ms, ",
+                                                 writeTime/1e6) +
+                                   String.format("map cache %.2f ms",
+                                                 mapTime/1e6));
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** write a sphere of about n triangles to an OBJ file */
+    static void writeSphere(File file, int n) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                                              new FileWriter(file)));
+
+        // (a grid of rows x 2*rows quads, 2 triangles each)
+        int rows = Math.max(2, (int)Math.sqrt(n / 4.0));
+        int columns = 2 * rows;
+
+        for (int j = 0; j <= rows; j++) {
+            double theta = Math.PI * j / rows;
+            for (int i = 0; i <= columns; i++) {
+                double phi = 2 * Math.PI * i / columns;
+                double x = Math.sin(theta) * Math.cos(phi);
+                double y = Math.sin(theta) * Math.sin(phi);
+                double z = Math.cos(theta);
+
+                out.println(String.format(Locale.ROOT, "v %.7f %.7f %.7f",
+                                          x, y, z));
+                out.println(String.format(Locale.ROOT, "vn %.7f %.7f %.7f",
+                                          x, y, z));
+                out.println(String.format(Locale.ROOT, "vt %.6f %.6f",
+                                          (double)i / columns,
+                                          (double)j / rows));
+            }
+        }
+
+        for (int j = 0; j < rows; j++) {
+            for (int i = 0; i < columns; i++) {
+                int a = j * (columns + 1) + i + 1, b = a + columns + 1;
+                out.println("f " + a + "/" + a + "/" + a + " " +
+                            b + "/" + b + "/" + b + " " +
+                            (b+1) + "/" + (b+1) + "/" + (b+1) + " " +
+                            (a+1) + "/" + (a+1) + "/" + (a+1));
+            }
+        }
+
+        out.close();
+    }
+}
@@ -0,0 +1,167 @@
+/* class ParseBench
+ * Measures how fast scene files are parsed, in statements per second.
+ * By default a scene of generated statements (materials, every kind of
+ * shape and every matrix stack command) is written to a temporary file
+ * and parsed; scene files given on the command line are parsed instead.
+ * With -files, the generated scene is split into that many files, which
+ * a main file includes (and which are read on -threads threads).
+ *
+ * Usage: java ParseBench [-statements n] [-files n] [-threads n] [-runs n]
+ *                        [scenefile ...]
+ */
+import java.io.*;
+import java.util.*;
+
+class ParseBench
+{
+    public static void main(String arguments[]) throws Throwable
+    {
+        List<String> files = new ArrayList<String>();
+        int statements = 200000;
+        int parts      = 1;
+        int threads    = Runtime.getRuntime().availableProcessors();
+        int runs       = 5;
+
+        for (int i=0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-statements")==0) {
+                statements = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-files")==0) {
+                parts      = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-threads")==0) {
+                threads    = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-runs")==0) {
+                runs       = Integer.parseInt(arguments[++i]);
+            } else {
+                files.add(arguments[i]);
+            }
+        }
+
+        Trace.verbose = false;
+
+        File generated = null;
+        int generatedStatements = 0;
+        if (files.isEmpty()) {
+            generated = File.createTempFile("parsebench", ".ray");
+            generated.deleteOnExit();
+            if (parts <= 1) {
+                writeScene(generated, statements);
+                generatedStatements = countStatements(generated.getPath());
+            } else {
+                generatedStatements = writeScene(generated, statements, parts);
+            }
+            files.add(generated.getPath());
+        }
+
+        for (String fileName : files) {
+            int n = generated != null ? generatedStatements :
+                                        countStatements(fileName);
+            double best = 0;
+
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+
+                Scene s = new Scene();
+                s.setThreads(threads);
+                Parser p = new Parser(s);
+                p.readFile(fileName);
+
+                long time = System.nanoTime() - start;
+                double rate = n / (time / 1e9);
+                best = Math.max(best, rate);
+
+                System.out.println("run " + run + ": " + n + " statements, " +
+                                   String.format("%.1f", time / 1e6) +
+                                   " ms, " + String.format("%.0f", rate) +
+                                   " statements/s");
+            }
+
+            System.out.println((generated != null ? "generated" : fileName) +
+                               ": best " + String.format("%.0f", best) +
+                               " statements/s");
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** write a scene of about n statements to a file */
+    static void writeScene(File file, int n) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                                              new FileWriter(file)));
+        Random random = new Random(1);
+        String[] shapes = { "sphere", "box", "cylinder", "cone" };
+
+        out.println("camera { eye = (0,0,10) look = (0,0,0) up = (0,1,0)"+
+                    " fovy = 40 near = 1 }");
+        out.println("light { position = (5,5,5) color = (1,1,1) }");
+
+        int materials = 16;
+        for (int m = 0; m < materials; m++)
+            out.println("material { name = m" + m +
+                        " ka = (0.1,0.1,0.1) kd = (" + random.nextDouble() +
+                        ", 0.5, 0.5) ks = (0.3,0.3,0.3) shiny = 20" +
+                        (m % 4 == 0 ? " checker = (0,0,0) (1,1,1) 4 4" : "") +
+                        " }");
+
+        // push, translate, rotate, scale, shape, pop
+        for (int i = materials + 2; i < n; i += 6) {
+            out.println("push {}");
+            out.println("translate { (" + number(random) + ", " +
+                        number(random) + ", " + number(random) + ") }");
+            out.println("rotate { 30 (0,1,0) }");
+            out.println("scale { (0.1,0.1,0.1) }");
+            out.println(shapes[i % shapes.length] + " { name = s" + i +
+                        " material = m" + (i % materials) + " }");
+            out.println("pop {}");
+        }
+
+        out.close();
+    }
+
+    /** write a scene of about n statements split into parts files, which
+     *  file includes, and return the number of statements
+     */
+    static int writeScene(File file, int n, int parts) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                                              new FileWriter(file)));
+        int count = parts;
+
+        for (int i = 0; i < parts; i++) {
+            File part = File.createTempFile("parsebench", ".ray",
+                                            file.getParentFile());
+            part.deleteOnExit();
+            writeScene(part, n / parts);
+            count += countStatements(part.getPath());
+
+            out.println("include { \"" + part.getName() + "\" }");
+        }
+
+        out.close();
+        return count;
+    }
+
+    /** a random number, without an exponent (which the tokenizer can't
+     *  read)
+     */
+    static String number(Random random)
+    {
+        return String.format(Locale.ROOT, "%.4f", random.nextDouble());
+    }
+
+    /** number of statements in a scene file (the "{" that open them) */
+    static int countStatements(String fileName) throws IOException
+    {
+        StreamTokenizer tokenizer = new StreamTokenizer(
+            new BufferedReader(new FileReader(fileName)));
+        tokenizer.commentChar('#');
+        tokenizer.ordinaryChar('/');
+        tokenizer.ordinaryChar('{');
+
+        int n = 0;
+        while (tokenizer.nextToken() != StreamTokenizer.TT_EOF)
+            if (tokenizer.ttype == '{')
+                n++;
+        return n;
+    }
+}
@@ -0,0 +1,385 @@
+/* class RenderBench
+ * End-to-end render benchmark: renders scenes at several resolutions and
+ * thread counts, reports wall time, rays per second and peak heap, and
+ * saves the results as JSON.  The results can be checked against a
+ * baseline (throughput) and against golden images (pixels).
+ *
+ * Usage: java RenderBench [-scenes s1,s2,...] [-res WxH,...] [-threads n,...]
+ *                         [-runs n] [-out file.json]
+ *                         [-baseline file.json] [-tolerance percent]
+ *                         [-golden dir] [-update-golden]
+ *
+ * Scenes are scene files, or "stress-N" for a generated scene with N
+ * random shapes.  Run it from the directory the scene files refer to
+ * their textures from.  The exit status is 1 if throughput dropped more
+ * than the tolerance below the baseline, or an image differs from its
+ * golden image, or if the baseline or a golden image is missing (unless
+ * -update-golden is given, which writes the golden images).
+ */
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+class RenderBench
+{
+    /** the measurements of one scene at one resolution and thread count */
+    static class Result
+    {
+        String scene;
+        int width, height, threads;
+        double wallMs;
+        long primaryRays, shadowRays, secondaryRays;
+        long peakHeapBytes;
+        // "same", "different", "missing", "updated" or "none" (not
+        // compared)
+        String golden = "none";
+
+        String key()
+        {
+            return scene + " " + width + "x" + height + " threads=" + threads;
+        }
+
+        double raysPerSecond()
+        {
+            return (primaryRays + shadowRays + secondaryRays) /
+                   (wallMs / 1000.0);
+        }
+
+        String toJSON()
+        {
+            double seconds = wallMs / 1000.0;
+            return String.format(Locale.ROOT,
+                "{\"scene\": \"%s\", \"width\": %d, \"height\": %d, " +
+                "\"threads\": %d, \"wallMs\": %.3f, " +
+                "\"primaryRays\": %d, \"shadowRays\": %d, " +
+                "\"secondaryRays\": %d, " +
+                "\"primaryRaysPerSecond\": %.1f, " +
+                "\"shadowRaysPerSecond\": %.1f, " +
+                "\"secondaryRaysPerSecond\": %.1f, " +
+                "\"raysPerSecond\": %.1f, " +
+                "\"peakHeapBytes\": %d, \"golden\": \"%s\"}",
+                scene, width, height, threads, wallMs,
+                primaryRays, shadowRays, secondaryRays,
+                primaryRays / seconds, shadowRays / seconds,
+                secondaryRays / seconds, raysPerSecond(),
+                peakHeapBytes, golden);
+        }
+    }
+
+    public static void main(String arguments[]) throws Throwable
+    {
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        String[] scenes = { "easy", "hard", "hardchecker", "easytex",
+                            "stress-1000", "stress-10000" };
+        String[] resolutions = { "256x256", "512x512" };
+        String[] threadCounts = cpus > 1 ? new String[] { "1", "" + cpus }
+                                         : new String[] { "1" };
+        int runs = 3;
+        String outFileName = "bench-results.json";
+        String baselineFileName = null;
+        double tolerance = 10.0;
+        String goldenDir = null;
+        boolean updateGolden = false;
+
+        for (int i=0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-scenes")==0) {
+                scenes = arguments[++i].split(",");
+            } else if (arguments[i].compareTo("-res")==0) {
+                resolutions = arguments[++i].split(",");
+            } else if (arguments[i].compareTo("-threads")==0) {
+                threadCounts = arguments[++i].split(",");
+            } else if (arguments[i].compareTo("-runs")==0) {
+                runs = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-out")==0) {
+                outFileName = arguments[++i];
+            } else if (arguments[i].compareTo("-baseline")==0) {
+                baselineFileName = arguments[++i];
+            } else if (arguments[i].compareTo("-tolerance")==0) {
+                tolerance = Double.parseDouble(arguments[++i]);
+            } else if (arguments[i].compareTo("-golden")==0) {
+                goldenDir = arguments[++i];
+            } else if (arguments[i].compareTo("-update-golden")==0) {
+                updateGolden = true;
+            } else {
+                System.out.println("Unknown option " + arguments[i]);
+                System.exit(2);
+            }
+        }
+
+        Trace.verbose = false;
+
+        List<Result> results = new ArrayList<Result>();
+        boolean failed = false;
+
+        for (String sceneName : scenes) {
+            String fileName = sceneFile(sceneName);
+
+            for (String threadCount : threadCounts) {
+                int threads = Integer.parseInt(threadCount.trim());
+
+                Scene s = new Scene();
+                s.setThreads(threads);
+                Parser p = new Parser(s);
+                p.readFile(fileName);
+                s.setup();
+
+                for (String resolution : resolutions) {
+                    String[] wh = resolution.trim().split("x");
+                    Result r = new Result();
+                    r.scene   = sceneName;
+                    r.width   = Integer.parseInt(wh[0]);
+                    r.height  = Integer.parseInt(wh[1]);
+                    r.threads = threads;
+
+                    RGBImage image = measure(s, r, runs);
+
+                    if (goldenDir != null)
+                        r.golden = compareGolden(image, r, goldenDir,
+                                                 updateGolden);
+                    failed |= r.golden.equals("different") ||
+                              r.golden.equals("missing");
+
+                    results.add(r);
+                    System.out.println(String.format(Locale.ROOT,
+                        "%-34s %10.1f ms %12.0f rays/s %8.1f MB heap  " +
+                        "golden: %s",
+                        r.key(), r.wallMs, r.raysPerSecond(),
+                        r.peakHeapBytes / 1e6, r.golden));
+                }
+            }
+        }
+
+        writeResults(results, outFileName);
+        System.out.println("Results written to " + outFileName);
+
+        if (baselineFileName != null && !updateGolden)
+            failed |= !checkBaseline(results, baselineFileName, tolerance);
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    //------------------------------------------------------------------------
+
+    /** render r.width X r.height once to warm up, then runs more times,
+     *  keeping the fastest time (and return the last image)
+     */
+    static RGBImage measure(Scene s, Result r, int runs) throws Throwable
+    {
+        s.render(r.width, r.height, false);
+
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                pools.add(pool);
+
+        System.gc();
+        for (MemoryPoolMXBean pool : pools)
+            pool.resetPeakUsage();
+
+        RGBImage image = null;
+        r.wallMs = Double.POSITIVE_INFINITY;
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            image = s.render(r.width, r.height, false);
+            r.wallMs = Math.min(r.wallMs, (System.nanoTime() - start) / 1e6);
+        }
+
+        r.peakHeapBytes = 0;
+        for (MemoryPoolMXBean pool : pools)
+            r.peakHeapBytes += pool.getPeakUsage().getUsed();
+
+        RenderStats stats = s.getStats();
+        r.primaryRays   = stats.primaryRays;
+        r.shadowRays    = stats.shadowRays;
+        r.secondaryRays = stats.secondaryRays;
+
+        return image;
+    }
+
+    /** compare the image with the golden image for its scene and
+     *  resolution (or write it as the golden image, if update is set)
+     */
+    static String compareGolden(RGBImage image, Result r, String goldenDir,
+                                boolean update)
+        throws IOException
+    {
+        File golden = new File(goldenDir, r.scene.replace('/', '_') + "-" +
+                               r.width + "x" + r.height + ".ppm");
+        File rendered = File.createTempFile("render", ".ppm");
+        try {
+            image.write(rendered.getPath());
+
+            if (update) {
+                golden.getParentFile().mkdirs();
+                Files.copy(rendered.toPath(), golden.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+                return "updated";
+            }
+            if (!golden.exists())
+                return "missing";
+
+            byte[] expected = Files.readAllBytes(golden.toPath());
+            byte[] actual   = Files.readAllBytes(rendered.toPath());
+            return Arrays.equals(expected, actual) ? "same" : "different";
+        } finally {
+            rendered.delete();
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // JSON results
+
+    static void writeResults(List<Result> results, String fileName)
+        throws IOException
+    {
+        PrintStream out = new PrintStream(new FileOutputStream(fileName));
+        out.println("{");
+        out.println("  \"date\": \"" + new Date() + "\",");
+        out.println("  \"java\": \"" + System.getProperty("java.version") +
+                    "\",");
+        out.println("  \"processors\": " +
+                    Runtime.getRuntime().availableProcessors() + ",");
+        out.println("  \"results\": [");
+        for (int i = 0; i < results.size(); i++)
+            out.println("    " + results.get(i).toJSON() +
+                        (i < results.size() - 1 ? "," : ""));
+        out.println("  ]");
+        out.println("}");
+        out.close();
+    }
+
+    /** compare rays per second with a baseline written by an earlier run,
+     *  and return false if any configuration got more than tolerance
+     *  percent slower, or isn't in the baseline (or there is no baseline)
+     */
+    static boolean checkBaseline(List<Result> results, String fileName,
+                                 double tolerance)
+        throws IOException
+    {
+        if (!new File(fileName).exists()) {
+            System.out.println("No baseline " + fileName +
+                               " (make one with -update-golden)");
+            return false;
+        }
+
+        String json = new String(Files.readAllBytes(Paths.get(fileName)),
+                                 "UTF-8");
+        Map<String, Double> baseline = new HashMap<String, Double>();
+
+        // (the results are flat objects, as written by writeResults())
+        Matcher m = Pattern.compile("\\{[^{}]*\\}").matcher(json);
+        while (m.find()) {
+            String object = m.group();
+            String scene = field(object, "scene");
+            if (scene == null)
+                continue;
+
+            baseline.put(scene + " " + field(object, "width") + "x" +
+                         field(object, "height") + " threads=" +
+                         field(object, "threads"),
+                         Double.valueOf(field(object, "raysPerSecond")));
+        }
+
+        boolean ok = true;
+        for (Result r : results) {
+            Double base = baseline.get(r.key());
+            if (base == null) {
+                System.out.println(String.format(Locale.ROOT,
+                    "%-34s not in baseline", r.key()));
+                ok = false;
+                continue;
+            }
+
+            double change = 100.0 * (r.raysPerSecond() - base) / base;
+            boolean regressed = change < -tolerance;
+            ok &= !regressed;
+
+            System.out.println(String.format(Locale.ROOT,
+                "%-34s %+7.1f%% vs baseline%s", r.key(), change,
+                regressed ? "  REGRESSION" : ""));
+        }
+
+        return ok;
+    }
+
+    /** the value of a field of a flat JSON object (null if absent) */
+    static String field(String object, String name)
+    {
+        Matcher m = Pattern.compile("\"" + name +
+                                    "\"\\s*:\\s*(\"([^\"]*)\"|[-+0-9.eE]+)")
+                           .matcher(object);
+        if (!m.find())
+            return null;
+        return m.group(2) != null ? m.group(2) : m.group(1);
+    }
+
+    //------------------------------------------------------------------------
+    // Generated scenes
+
+    /** the file to read a scene from (generating "stress-N" scenes) */
+    static String sceneFile(String sceneName) throws IOException
+    {
+        if (!sceneName.startsWith("stress-"))
+            return sceneName;
+
+        int n = Integer.parseInt(sceneName.substring("stress-".length()));
+        File file = File.createTempFile(sceneName, ".scene");
+        file.deleteOnExit();
+
+        PrintStream out = new PrintStream(new FileOutputStream(file));
+        writeStressScene(out, n, new Random(n));
+        out.close();
+
+        return file.getPath();
+    }
+
+    /** n randomly placed, rotated and scaled shapes in front of the
+     *  camera, some of them transparent, lit by a point light and a
+     *  directional light
+     */
+    static void writeStressScene(PrintStream out, int n, Random random)
+    {
+        String[] shapes = { "sphere", "box", "cylinder", "cone" };
+        String[] materials = { "red", "glass", "default" };
+
+        // (spread the shapes out so their density stays about the same)
+        double size = 12.0 * Math.cbrt(n / 1000.0);
+
+        out.println(String.format(Locale.ROOT, "translate { (0 0 %f) }",
+                                  -2.5 * size));
+        out.println("material { name = red ka = (0.1 0 0) " +
+                    "kd = (0.8 0.2 0.2) ks = (0.3 0.3 0.3) shiny = 10 }");
+        out.println("material { name = glass ka = (0.01 0.01 0.01) " +
+                    "kd = (0.1 0.1 0.1) kt = (0.6 0.7 0.8) }");
+        out.println(String.format(Locale.ROOT,
+                                  "light { position = (%f %f %f) }",
+                                  size, size, size));
+        out.println("light { direction = (-1 2 3) color = (0.4 0.4 0.4) }");
+
+        for (int i = 0; i < n; i++) {
+            out.println("push {}");
+            out.println(String.format(Locale.ROOT,
+                "translate { (%f %f %f) }", uniform(random, -size, size),
+                uniform(random, -size, size), uniform(random, -size, size)));
+            out.println(String.format(Locale.ROOT,
+                "rotate { %f (%f %f %f) }", uniform(random, 0, 360),
+                uniform(random, -1, 1), uniform(random, -1, 1),
+                uniform(random, 0.1, 1)));
+            out.println(String.format(Locale.ROOT,
+                "scale { (%f %f %f) }", uniform(random, 0.3, 1.5),
+                uniform(random, 0.3, 1.5), uniform(random, 0.3, 1.5)));
+            out.println(shapes[random.nextInt(shapes.length)] +
+                        " { material = " +
+                        materials[random.nextInt(materials.length)] + " }");
+            out.println("pop {}");
+        }
+    }
+
+    static double uniform(Random random, double lo, double hi)
+    {
+        return lo + (hi - lo) * random.nextDouble();
+    }
+}
@@ -0,0 +1,573 @@
+/* class BVH
+ * Bounding volume hierarchy over the shapes of the scene, built from
+ * their world space bounds (see BVHBuilder) and stored in flat arrays
+ */
+import java.io.*;
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.vecmath.*;
+
+class BVH
+{
+    // Maximum number of shapes in a leaf
+    static final int maxLeafSize = 4;
+
+    // Maximum depth of the tree (deeper nodes are made into leaves), which
+    // bounds the size of the traversal stack
+    static final int maxDepth    = 60;
+
+    // Shapes referenced by the hierarchy (null if it was built over some
+    // other kind of primitive)
+    Shape[] shapes;
+
+    // Node bounds: (minX, minY, minZ, maxX, maxY, maxZ) of node i start at
+    // nodeBounds[6*i]
+    double[] nodeBounds;
+
+    // Node contents: for node i, nodeInfo[2*i+1] is the number of shapes
+    // in a leaf (0 for an interior node) and nodeInfo[2*i] is the index
+    // of the first shape in primIndices (for a leaf) or of the first of
+    // the two children, which are stored next to each other (interior)
+    int[] nodeInfo;
+
+    // Shape indices, ordered so each leaf references a contiguous range
+    int[] primIndices;
+
+    // Number of nodes in use
+    int nodeCount;
+
+    // Time taken to build the hierarchy (milliseconds)
+    double buildTime;
+
+    //------------------------------------------------------------------------
+
+    /** build a hierarchy over the given shapes, using up to threads
+     *  threads
+     */
+    public BVH(List<Shape> objects, int threads)
+    {
+        long startTime = System.nanoTime();
+
+        int n = objects.size();
+        shapes = objects.toArray(new Shape[n]);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // World space bounds of the shapes
+            double[] primBounds = new double[6*n];
+            pool.invoke(new BoundsTask(shapes, primBounds, 0, n));
+
+            build(primBounds, n, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        buildTime = (System.nanoTime() - startTime) / 1e6;
+    }
+
+    /** build a hierarchy over n primitives other than shapes (such as
+     *  triangles), given their bounds (6 values each, as in nodeBounds)
+     */
+    public BVH(double[] primBounds, int n, int threads)
+    {
+        long startTime = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            build(primBounds, n, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        buildTime = (System.nanoTime() - startTime) / 1e6;
+    }
+
+    /** build the node arrays over n primitives with bounds primBounds
+     *  (6 values each, as in nodeBounds)
+     */
+    private void build(double[] primBounds, int n, ForkJoinPool pool)
+    {
+        RenderEvents.BVHBuild event = new RenderEvents.BVHBuild();
+        event.begin();
+
+        // A binary tree with at least one primitive per leaf has at most
+        // 2n-1 nodes
+        int maxNodes = Math.max(1, 2*n - 1);
+        nodeBounds  = new double[6*maxNodes];
+        nodeInfo    = new int[2*maxNodes];
+        primIndices = new int[n];
+
+        BVHBuilder.build(this, primBounds, n, pool);
+
+        // Release the unused nodes
+        nodeBounds = Arrays.copyOf(nodeBounds, 6*nodeCount);
+        nodeInfo   = Arrays.copyOf(nodeInfo,   2*nodeCount);
+
+        if (event.shouldCommit()) {
+            event.primitives = n;
+            event.nodes      = nodeCount;
+            event.commit();
+        }
+    }
+
+    /** computes padded world space bounds of a range of shapes */
+    static class BoundsTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        Shape[] shapes;
+        double[] bounds;
+        int start, end;
+
+        BoundsTask(Shape[] shapes, double[] bounds, int start, int end)
+        {
+            this.shapes = shapes;
+            this.bounds = bounds;
+            this.start  = start;
+            this.end    = end;
+        }
+
+        protected void compute()
+        {
+            if (end - start > BVHBuilder.parallelThreshold) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new BoundsTask(shapes, bounds, start, mid),
+                          new BoundsTask(shapes, bounds, mid, end));
+                return;
+            }
+
+            for (int i = start; i < end; i++) {
+                // (a shape with children stands for all of them)
+                if (shapes[i].groupBounds != null) {
+                    System.arraycopy(shapes[i].groupBounds, 0, bounds, 6*i,
+                                     6);
+                } else {
+                    shapes[i].getWorldBounds(bounds, 6*i);
+                    pad(bounds, 6*i);
+                }
+            }
+        }
+    }
+
+    /** grow bounds slightly so rays grazing a shape still enter its box */
+    static void pad(double[] b, int offset)
+    {
+        for (int k = 0; k < 3; k++) {
+            b[offset+k]   -= 1e-9 * (1 + Math.abs(b[offset+k]));
+            b[offset+k+3] += 1e-9 * (1 + Math.abs(b[offset+k+3]));
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Tree quality
+
+    /** print the build time, the SAH cost of the tree (relative to
+     *  intersecting every primitive), its depth, and a histogram of the
+     *  number of primitives in its leaves
+     */
+    public void printStats(PrintStream out)
+    {
+        double rootArea = BVHBuilder.area(nodeBounds, 0);
+        double cost = 0.0;
+        int maxDepthFound = 0, leaves = 0;
+        int[] leafSizes = new int[BVH.maxLeafSize + 2];
+
+        int[] stack = new int[2*(maxDepth + 4)];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int depth = stack[--top];
+            int node  = stack[--top];
+            int first = nodeInfo[2*node], count = nodeInfo[2*node+1];
+            double area = rootArea > 0.0 ?
+                BVHBuilder.area(nodeBounds, 6*node) / rootArea : 1.0;
+
+            maxDepthFound = Math.max(maxDepthFound, depth);
+
+            if (count == 0 && primIndices.length > 0) {
+                cost += BVHBuilder.traversalCost * area;
+                stack[top++] = first;
+                stack[top++] = depth + 1;
+                stack[top++] = first + 1;
+                stack[top++] = depth + 1;
+            } else {
+                cost += BVHBuilder.intersectCost * count * area;
+                leaves++;
+                leafSizes[Math.min(count, leafSizes.length - 1)]++;
+            }
+        }
+
+        out.println("BVH: " + primIndices.length + " primitives, " +
+                    nodeCount +
+                    " nodes, built in " +
+                    String.format("%.1f", buildTime) + " ms");
+        out.println("BVH: SAH cost " + String.format("%.2f", cost) +
+                    " (" + String.format("%.2f", BVHBuilder.intersectCost *
+                                         primIndices.length) +
+                    " unaccelerated), depth " + maxDepthFound +
+                    ", " + leaves + " leaves");
+
+        String histogram = "BVH: leaf sizes";
+        for (int i = 0; i < leafSizes.length; i++) {
+            if (leafSizes[i] == 0)
+                continue;
+            histogram += "  " + (i == leafSizes.length - 1 ? ">=" : "") +
+                         i + ": " + leafSizes[i];
+        }
+        out.println(histogram);
+    }
+
+    //------------------------------------------------------------------------
+    // Traversal
+
+    /** check whether the ray with origin o and inverse direction inv
+     *  passes through the box of a node between tMin and tMax
+     */
+    private boolean hitsNode(int node, Point3d o, double invX, double invY,
+                             double invZ, double tMin, double tMax)
+    {
+        return hitsBox(nodeBounds, 6*node, o, invX, invY, invZ, tMin, tMax);
+    }
+
+    /** check whether the ray with origin o and inverse direction inv
+     *  passes through the box stored at bounds[b] to bounds[b+5] (as in
+     *  nodeBounds) between tMin and tMax
+     */
+    static boolean hitsBox(double[] bounds, int b, Point3d o, double invX,
+                           double invY, double invZ, double tMin,
+                           double tMax)
+    {
+        double t0, t1;
+
+        t0 = (bounds[b]   - o.x) * invX;
+        t1 = (bounds[b+3] - o.x) * invX;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        // (NaN from 0 * infinity fails both tests, keeping the node)
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        if (tMin > tMax) return false;
+
+        t0 = (bounds[b+1] - o.y) * invY;
+        t1 = (bounds[b+4] - o.y) * invY;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        if (tMin > tMax) return false;
+
+        t0 = (bounds[b+2] - o.z) * invZ;
+        t1 = (bounds[b+5] - o.z) * invZ;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        return tMin <= tMax;
+    }
+
+    /** hitsBox() for bounds in a buffer (such as a mapped file, see
+     *  MeshCache)
+     */
+    static boolean hitsBox(DoubleBuffer bounds, int b, Point3d o,
+                           double invX, double invY, double invZ,
+                           double tMin, double tMax)
+    {
+        double t0, t1;
+
+        t0 = (bounds.get(b)   - o.x) * invX;
+        t1 = (bounds.get(b+3) - o.x) * invX;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        if (tMin > tMax) return false;
+
+        t0 = (bounds.get(b+1) - o.y) * invY;
+        t1 = (bounds.get(b+4) - o.y) * invY;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        if (tMin > tMax) return false;
+
+        t0 = (bounds.get(b+2) - o.z) * invZ;
+        t1 = (bounds.get(b+5) - o.z) * invZ;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        return tMin <= tMax;
+    }
+
+    /** hitsBox() for bounds stored as floats (see PrimitiveSet) */
+    static boolean hitsBox(float[] bounds, int b, Point3d o, double invX,
+                           double invY, double invZ, double tMin,
+                           double tMax)
+    {
+        double t0, t1;
+
+        t0 = (bounds[b]   - o.x) * invX;
+        t1 = (bounds[b+3] - o.x) * invX;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        if (tMin > tMax) return false;
+
+        t0 = (bounds[b+1] - o.y) * invY;
+        t1 = (bounds[b+4] - o.y) * invY;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        if (tMin > tMax) return false;
+
+        t0 = (bounds[b+2] - o.z) * invZ;
+        t1 = (bounds[b+5] - o.z) * invZ;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tMin) tMin = t0;
+        if (t1 < tMax) tMax = t1;
+        return tMin <= tMax;
+    }
+
+    /** find the closest shape hit by the world space ray r with t above
+     *  minT (or null if none), using intersection for the hit results
+     *  (only t is computed, and the hit object and primitive of that hit
+     *  are kept, see Shape.hit())
+     *
+     *  ctx provides the object space ray and traversal stack, and counts
+     *  the work done
+     */
+    public Shape closestHit(Ray r, ISect intersection, double minT,
+                            RenderContext ctx)
+    {
+        Ray objRay = ctx.objRay;
+        int[] stack = ctx.stack;
+        long[] tests = ctx.stats.tests, hits = ctx.stats.hits;
+        int visits = 0;
+
+        Point3d o = r.getPoint();
+        Vector3d d = r.getDirection();
+        double invX = 1.0 / d.x, invY = 1.0 / d.y, invZ = 1.0 / d.z;
+
+        Shape closestShape = null, closestObject = null;
+        double closestT = Double.POSITIVE_INFINITY;
+        int closestPrimitive = -1;
+
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int node = stack[--top];
+            visits++;
+            if (!hitsNode(node, o, invX, invY, invZ, 0.0, closestT))
+                continue;
+
+            int first = nodeInfo[2*node], count = nodeInfo[2*node+1];
+            if (count == 0) {
+                stack[top++] = first + 1;
+                stack[top++] = first;
+                continue;
+            }
+
+            for (int i = first; i < first + count; i++) {
+                Shape current = shapes[primIndices[i]];
+
+                if (current.children != null) {
+                    Shape hit = closestInGroup(current, r, invX, invY, invZ,
+                                               intersection, minT, closestT,
+                                               ctx);
+                    if (hit != null) {
+                        closestShape = hit;
+                        closestObject = intersection.hitObject;
+                        closestPrimitive = intersection.primitive;
+                        closestT = intersection.getT();
+                    }
+                    continue;
+                }
+
+                current.toObjectSpace(r, objRay);
+                int kind = current.kind;
+                if (kind >= 0)
+                    tests[kind]++;
+                if (current.hit(objRay, intersection, false, minT)) {
+                    if (kind >= 0)
+                        hits[kind]++;
+                    if (intersection.getT() < closestT) {
+                        closestShape = current;
+                        closestObject = intersection.hitObject;
+                        closestPrimitive = intersection.primitive;
+                        closestT = intersection.getT();
+                    }
+                }
+            }
+        }
+
+        ctx.stats.nodeVisits += visits;
+
+        if (closestShape != null) {
+            intersection.setT(closestT);
+            intersection.hitObject = closestObject;
+            intersection.primitive = closestPrimitive;
+        }
+
+        return closestShape;
+    }
+
+    /** filter tint by the Kt of every shape that the world space ray r
+     *  hits between minT and maxT, stopping as soon as the light is
+     *  blocked (see Scene.transmit())
+     *  (intersection is scratch space; ctx is used as in closestHit())
+     */
+    public void shadowTint(Ray r, ISect intersection, double minT,
+                           double maxT, Vector3d tint, double threshold,
+                           RenderContext ctx)
+    {
+        Ray objRay = ctx.objRay;
+        int[] stack = ctx.stack;
+        long[] tests = ctx.stats.occlusionTests;
+        long[] hits  = ctx.stats.occlusionHits;
+        int visits = 0;
+
+        Point3d o = r.getPoint();
+        Vector3d d = r.getDirection();
+        double invX = 1.0 / d.x, invY = 1.0 / d.y, invZ = 1.0 / d.z;
+
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int node = stack[--top];
+            visits++;
+            if (!hitsNode(node, o, invX, invY, invZ, 0.0, maxT))
+                continue;
+
+            int first = nodeInfo[2*node], count = nodeInfo[2*node+1];
+            if (count == 0) {
+                stack[top++] = first + 1;
+                stack[top++] = first;
+                continue;
+            }
+
+            for (int i = first; i < first + count; i++) {
+                Shape current = shapes[primIndices[i]];
+
+                if (current.children != null) {
+                    if (shadowTintGroup(current, r, invX, invY, invZ,
+                                        intersection, minT, maxT, tint,
+                                        threshold, ctx)) {
+                        ctx.stats.nodeVisits += visits;
+                        return;
+                    }
+                    continue;
+                }
+
+                current.toObjectSpace(r, objRay);
+                int kind = current.kind;
+                if (kind >= 0)
+                    tests[kind]++;
+                if (current.occludes(objRay, intersection, minT, maxT)) {
+                    if (kind >= 0)
+                        hits[kind]++;
+                    if (Scene.transmit(current, intersection, tint,
+                                       threshold)) {
+                        ctx.stats.nodeVisits += visits;
+                        return;
+                    }
+                }
+            }
+        }
+
+        ctx.stats.nodeVisits += visits;
+    }
+
+    //------------------------------------------------------------------------
+    // Object hierarchy (shapes with children, see Scene.hierarchyOn)
+
+    /** find the closest shape hit by r with t above minT and below
+     *  closestT among s and its descendants, skipping each shape whose
+     *  group bounds the ray misses along with all of its descendants, and
+     *  return it, with its t in intersection (or null if there is none)
+     *  (intersection and ctx are used as in closestHit())
+     */
+    static Shape closestInGroup(Shape s, Ray r, double invX, double invY,
+                                double invZ, ISect intersection, double minT,
+                                double closestT, RenderContext ctx)
+    {
+        Shape closestShape = null, closestObject = null;
+        int closestPrimitive = -1;
+
+        if (s.groupBounds != null) {
+            ctx.stats.nodeVisits++;
+            if (!hitsBox(s.groupBounds, 0, r.getPoint(), invX, invY, invZ,
+                         0.0, closestT))
+                return null;
+        }
+
+        s.toObjectSpace(r, ctx.objRay);
+        if (s.kind >= 0)
+            ctx.stats.tests[s.kind]++;
+        if (s.hit(ctx.objRay, intersection, false, minT)) {
+            if (s.kind >= 0)
+                ctx.stats.hits[s.kind]++;
+            if (intersection.getT() < closestT) {
+                closestShape = s;
+                closestObject = intersection.hitObject;
+                closestPrimitive = intersection.primitive;
+                closestT = intersection.getT();
+            }
+        }
+
+        List<Shape> children = s.children;
+        for (int i = 0; children != null && i < children.size(); i++) {
+            Shape hit = closestInGroup(children.get(i), r, invX, invY, invZ,
+                                       intersection, minT, closestT, ctx);
+            if (hit != null) {
+                closestShape = hit;
+                closestObject = intersection.hitObject;
+                closestPrimitive = intersection.primitive;
+                closestT = intersection.getT();
+            }
+        }
+
+        if (closestShape != null) {
+            intersection.setT(closestT);
+            intersection.hitObject = closestObject;
+            intersection.primitive = closestPrimitive;
+        }
+
+        return closestShape;
+    }
+
+    /** filter tint by s and each of its descendants in the way of r
+     *  between minT and maxT (skipping shapes as in closestInGroup()),
+     *  and return true as soon as the light is blocked
+     *  (intersection and ctx are used as in shadowTint())
+     */
+    static boolean shadowTintGroup(Shape s, Ray r, double invX, double invY,
+                                   double invZ, ISect intersection,
+                                   double minT, double maxT, Vector3d tint,
+                                   double threshold, RenderContext ctx)
+    {
+        if (s.groupBounds != null) {
+            ctx.stats.nodeVisits++;
+            if (!hitsBox(s.groupBounds, 0, r.getPoint(), invX, invY, invZ,
+                         0.0, maxT))
+                return false;
+        }
+
+        s.toObjectSpace(r, ctx.objRay);
+        if (s.kind >= 0)
+            ctx.stats.occlusionTests[s.kind]++;
+        if (s.occludes(ctx.objRay, intersection, minT, maxT)) {
+            if (s.kind >= 0)
+                ctx.stats.occlusionHits[s.kind]++;
+            if (Scene.transmit(s, intersection, tint, threshold))
+                return true;
+        }
+
+        List<Shape> children = s.children;
+        for (int i = 0; children != null && i < children.size(); i++) {
+            if (shadowTintGroup(children.get(i), r, invX, invY, invZ, intersection,
+                                minT, maxT, tint, threshold, ctx))
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,328 @@
+/* class BVHBuilder
+ * Builds the nodes of a BVH with the surface area heuristic, choosing
+ * split planes by binning primitive centroids.  Large subtrees are built
+ * in parallel on a fork/join pool.
+ */
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class BVHBuilder extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    // Number of bins along each axis
+    static final int binCount          = 16;
+
+    // Relative costs of traversing a node and intersecting a primitive
+    static final double traversalCost  = 1.0;
+    static final double intersectCost  = 1.0;
+
+    // Ranges with fewer primitives than this are built on the current
+    // thread (forking costs more than building them)
+    static final int parallelThreshold = 4096;
+
+    // Hierarchy being built, and the primitives' bounds and centroids
+    // (kept in the same order as bvh.primIndices, so each node's
+    // primitives are contiguous in memory)
+    BVH bvh;
+    double[] primBounds;
+    double[] centroids;
+
+    // Next free node (children are allocated in pairs)
+    AtomicInteger nextNode;
+
+    // Node being built, its range of bvh.primIndices, and its depth
+    int node, start, end, depth;
+
+    // Scratch space for binning (shared by the tasks one thread runs
+    // one after another)
+    double[] cb;
+    int[] binPrims;
+    double[] binBounds;
+    double[] rightArea;
+    double[] acc;
+
+    private BVHBuilder(BVH bvh, double[] primBounds, double[] centroids,
+                       AtomicInteger nextNode, int node, int start, int end,
+                       int depth)
+    {
+        this(bvh, primBounds, centroids, nextNode, node, start, end, depth,
+             null);
+    }
+
+    private BVHBuilder(BVH bvh, double[] primBounds, double[] centroids,
+                       AtomicInteger nextNode, int node, int start, int end,
+                       int depth, BVHBuilder scratch)
+    {
+        this.bvh        = bvh;
+        this.primBounds = primBounds;
+        this.centroids  = centroids;
+        this.nextNode   = nextNode;
+        this.node       = node;
+        this.start      = start;
+        this.end        = end;
+        this.depth      = depth;
+
+        if (scratch != null) {
+            cb        = scratch.cb;
+            binPrims  = scratch.binPrims;
+            binBounds = scratch.binBounds;
+            rightArea = scratch.rightArea;
+            acc       = scratch.acc;
+        } else {
+            cb        = new double[6];
+            binPrims  = new int[binCount];
+            binBounds = new double[6*binCount];
+            rightArea = new double[binCount];
+            acc       = new double[6];
+        }
+    }
+
+    /** build the nodes of bvh over the n primitives whose bounds are
+     *  stored in primBounds (6 values each, as in BVH.nodeBounds)
+     *  (primBounds is reordered along with bvh.primIndices)
+     */
+    static void build(BVH bvh, double[] primBounds, int n,
+                      ForkJoinPool pool)
+    {
+        double[] centroids = new double[3*n];
+        for (int i = 0; i < n; i++) {
+            bvh.primIndices[i] = i;
+            for (int k = 0; k < 3; k++)
+                centroids[3*i+k] = 0.5 * (primBounds[6*i+k] +
+                                          primBounds[6*i+k+3]);
+        }
+
+        AtomicInteger nextNode = new AtomicInteger(1);
+        pool.invoke(new BVHBuilder(bvh, primBounds, centroids, nextNode,
+                                   0, 0, n, 0));
+        bvh.nodeCount = nextNode.get();
+    }
+
+    //------------------------------------------------------------------------
+
+    protected void compute()
+    {
+        int mid = buildNode();
+        if (mid < 0)
+            return;
+
+        int left = bvh.nodeInfo[2*node];
+
+        if (end - start >= parallelThreshold) {
+            invokeAll(new BVHBuilder(bvh, primBounds, centroids, nextNode,
+                                     left, start, mid, depth + 1, this),
+                      new BVHBuilder(bvh, primBounds, centroids, nextNode,
+                                     left + 1, mid, end, depth + 1));
+        } else {
+            // (the children run one after the other, so they can share
+            // this task's scratch space)
+            new BVHBuilder(bvh, primBounds, centroids, nextNode,
+                           left, start, mid, depth + 1, this).compute();
+            new BVHBuilder(bvh, primBounds, centroids, nextNode,
+                           left + 1, mid, end, depth + 1, this).compute();
+        }
+    }
+
+    /** fill in the current node; if it is split, allocate its children,
+     *  partition its range and return the start of the right child's
+     *  range, otherwise make it a leaf and return -1
+     */
+    private int buildNode()
+    {
+        double[] nodeBounds = bvh.nodeBounds;
+        int nb = 6*node;
+
+        // Bounds of the node and of the centroids in it
+        double bx0 = Double.POSITIVE_INFINITY, bx1 = Double.NEGATIVE_INFINITY;
+        double by0 = bx0, by1 = bx1, bz0 = bx0, bz1 = bx1;
+        double cx0 = bx0, cx1 = bx1, cy0 = bx0, cy1 = bx1, cz0 = bx0, cz1 = bx1;
+        for (int i = start; i < end; i++) {
+            int b = 6*i, c = 3*i;
+            if (primBounds[b]   < bx0) bx0 = primBounds[b];
+            if (primBounds[b+1] < by0) by0 = primBounds[b+1];
+            if (primBounds[b+2] < bz0) bz0 = primBounds[b+2];
+            if (primBounds[b+3] > bx1) bx1 = primBounds[b+3];
+            if (primBounds[b+4] > by1) by1 = primBounds[b+4];
+            if (primBounds[b+5] > bz1) bz1 = primBounds[b+5];
+            if (centroids[c]   < cx0) cx0 = centroids[c];
+            if (centroids[c]   > cx1) cx1 = centroids[c];
+            if (centroids[c+1] < cy0) cy0 = centroids[c+1];
+            if (centroids[c+1] > cy1) cy1 = centroids[c+1];
+            if (centroids[c+2] < cz0) cz0 = centroids[c+2];
+            if (centroids[c+2] > cz1) cz1 = centroids[c+2];
+        }
+        nodeBounds[nb]   = bx0;  nodeBounds[nb+1] = by0;  nodeBounds[nb+2] = bz0;
+        nodeBounds[nb+3] = bx1;  nodeBounds[nb+4] = by1;  nodeBounds[nb+5] = bz1;
+        cb[0] = cx0;  cb[1] = cy0;  cb[2] = cz0;
+        cb[3] = cx1;  cb[4] = cy1;  cb[5] = cz1;
+
+        int count = end - start;
+        if (count <= 1 || depth >= BVH.maxDepth) {
+            makeLeaf(count);
+            return -1;
+        }
+
+        // Find the cheapest split plane between bins, over all three axes
+        int bestAxis = -1, bestBin = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+
+        // (small nodes don't need as many bins)
+        int bins = Math.min(binCount, Math.max(4, count));
+
+        for (int axis = 0; axis < 3; axis++) {
+            double lo = cb[axis], extent = cb[axis+3] - lo;
+            if (!(extent > 0.0))
+                continue;
+            double scale = bins / extent;
+
+            // Drop the primitives into bins
+            for (int b = 0; b < bins; b++) {
+                binPrims[b] = 0;
+                for (int k = 0; k < 3; k++) {
+                    binBounds[6*b+k]   = Double.POSITIVE_INFINITY;
+                    binBounds[6*b+k+3] = Double.NEGATIVE_INFINITY;
+                }
+            }
+            for (int i = start; i < end; i++) {
+                int b = binIndex(centroids[3*i+axis], lo, scale, bins);
+                binPrims[b]++;
+                for (int k = 0; k < 3; k++) {
+                    double bl = primBounds[6*i+k], bh = primBounds[6*i+k+3];
+                    if (bl < binBounds[6*b+k])   binBounds[6*b+k]   = bl;
+                    if (bh > binBounds[6*b+k+3]) binBounds[6*b+k+3] = bh;
+                }
+            }
+
+            // Sweep from the right to get the area to the right of each
+            // plane, then from the left to evaluate each plane
+            clear(acc);
+            for (int b = bins - 1; b > 0; b--) {
+                grow(acc, binBounds, 6*b);
+                rightArea[b] = area(acc, 0);
+            }
+
+            clear(acc);
+            int leftCount = 0;
+            for (int b = 0; b < bins - 1; b++) {
+                grow(acc, binBounds, 6*b);
+                leftCount += binPrims[b];
+                int rightCount = count - leftCount;
+                if (leftCount == 0 || rightCount == 0)
+                    continue;
+
+                double cost = leftCount * area(acc, 0) +
+                              rightCount * rightArea[b+1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin  = b;
+                }
+            }
+        }
+
+        double nodeArea = area(nodeBounds, nb);
+        double leafCost = intersectCost * count;
+        double splitCost = traversalCost +
+                           intersectCost * bestCost / nodeArea;
+
+        int mid;
+        if (bestAxis < 0) {
+            // All centroids coincide: no plane separates them
+            if (count <= BVH.maxLeafSize) {
+                makeLeaf(count);
+                return -1;
+            }
+            mid = (start + end) / 2;
+        } else {
+            if (count <= BVH.maxLeafSize && leafCost <= splitCost) {
+                makeLeaf(count);
+                return -1;
+            }
+
+            // Partition the range at the chosen plane
+            double lo = cb[bestAxis];
+            double scale = bins / (cb[bestAxis+3] - lo);
+            int i = start, j = end - 1;
+            while (i <= j) {
+                if (binIndex(centroids[3*i+bestAxis], lo, scale, bins) <=
+                    bestBin) {
+                    i++;
+                } else {
+                    swap(i, j);
+                    j--;
+                }
+            }
+            mid = i;
+        }
+
+        int left = nextNode.getAndAdd(2);
+        bvh.nodeInfo[2*node]   = left;
+        bvh.nodeInfo[2*node+1] = 0;
+
+        return mid;
+    }
+
+    /** swap primitives i and j (their indices, bounds and centroids) */
+    private void swap(int i, int j)
+    {
+        int[] prims = bvh.primIndices;
+        int p = prims[i];
+        prims[i] = prims[j];
+        prims[j] = p;
+
+        for (int k = 0; k < 6; k++) {
+            double t = primBounds[6*i+k];
+            primBounds[6*i+k] = primBounds[6*j+k];
+            primBounds[6*j+k] = t;
+        }
+        for (int k = 0; k < 3; k++) {
+            double t = centroids[3*i+k];
+            centroids[3*i+k] = centroids[3*j+k];
+            centroids[3*j+k] = t;
+        }
+    }
+
+    private void makeLeaf(int count)
+    {
+        bvh.nodeInfo[2*node]   = start;
+        bvh.nodeInfo[2*node+1] = count;
+    }
+
+    private static int binIndex(double c, double lo, double scale, int bins)
+    {
+        int b = (int)((c - lo) * scale);
+        return b < 0 ? 0 : (b >= bins ? bins - 1 : b);
+    }
+
+    //------------------------------------------------------------------------
+    // Box utilities (boxes stored as in BVH.nodeBounds)
+
+    static void clear(double[] box)
+    {
+        for (int k = 0; k < 3; k++) {
+            box[k]   = Double.POSITIVE_INFINITY;
+            box[k+3] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /** grow box to contain the box at boxes[offset] */
+    static void grow(double[] box, double[] boxes, int offset)
+    {
+        for (int k = 0; k < 3; k++) {
+            box[k]   = Math.min(box[k],   boxes[offset+k]);
+            box[k+3] = Math.max(box[k+3], boxes[offset+k+3]);
+        }
+    }
+
+    /** half the surface area of the box at boxes[offset] (0 if empty) */
+    static double area(double[] boxes, int offset)
+    {
+        double dx = boxes[offset+3] - boxes[offset];
+        double dy = boxes[offset+4] - boxes[offset+1];
+        double dz = boxes[offset+5] - boxes[offset+2];
+        if (!(dx >= 0.0 && dy >= 0.0 && dz >= 0.0))
+            return 0.0;
+        return dx*dy + dy*dz + dz*dx;
+    }
+}
@@ -12,6 +12,11 @@ class Box extends Shape
 {
     public static String keyword = "box";
 
+    /** constructor for shapes made in code */
+    public Box()
+    {
+    }
+
     public Box( StreamTokenizer tokenizer )
 	throws ParseException, IOException, NoSuchMethodException,
 	       ClassNotFoundException,IllegalAccessException,
@@ -23,75 +28,62 @@ class Box extends Shape
 
     // -----------------------------------------------------------------------
 
+    /** bounds of the cube with side length 2 centered on the origin */
+    void getObjectBounds(double[] bounds)
+    {
+	double[] b = { -1, -1, -1, 1, 1, 1 };
+	System.arraycopy(b, 0, bounds, 0, 6);
+    }
+
+    // -----------------------------------------------------------------------
+
     /** computes the ray intersection point of a cube centered on the
      *  origin with side length 2 (same bounds as the sphere)
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	double rayLength = r.getDirection().length();
-	r.getDirection().normalize();
+	Point3d  p = r.getPoint();
+	Vector3d d = r.getDirection();
+	double rayLength = d.length();
 	minT *= rayLength;
 	boolean objHit = false;
-       
-	double[] rayPos = new double[3];
-	r.getPoint().get( rayPos);
-	double[] rayDir = new double[3];
-	r.getDirection().get( rayDir);
-       
-	double t1, t2;
-       
-	for (int i = 0; i < rayDir.length; i++) {
+
+	// normalized copy of the direction (r is left alone)
+	double norm = 1.0/Math.sqrt(d.x*d.x + d.y*d.y + d.z*d.z);
+	double dx = d.x*norm, dy = d.y*norm, dz = d.z*norm;
+
+	double left = -1.0;
+	double right = 1.0;
+
+	for (int i = 0; i < 3; i++) {
 	    int i1 = (i+1) % 3;
 	    int i2 = (i+2) % 3;
-	    double left = -1.0;
-	    double right = 1.0;
-	    double dir = rayDir[i];
-	    double pos = rayPos[i];
+	    double dir = pick(i, dx, dy, dz);
+	    double pos = pick(i, p.x, p.y, p.z);
 	   
-	    if (dir != 0.0) {
-		t1 = (left - pos) / dir;
-		if (t1 >= minT && (!objHit || t1 < intersection.t)) {
-		    Point3d iPoint = new Point3d((Tuple3d)r.getDirection());
-		    iPoint.scaleAdd(t1, r.getPoint());
-		   
-		    double[] temp = new double[3];
-		    iPoint.get(temp);
-		    if (!(temp[i1] < left || temp[i1] > right ||
-			  temp[i2] < left || temp[i2] > right)) {
-		       
-			objHit = true;
-			intersection.t = t1;
-			intersection.setHitPoint(iPoint);
-			if (all) {
-			    intersection.getNormal().set(0,0,0);
-			    double[] nVector = new double[3];
-			    intersection.getNormal().get(nVector);
-			    nVector[i] = -1.0;
-			    intersection.getNormal().set(nVector);
-			    uvPlane(intersection, i1, i2);
-			}
-		    }
-		}
-		t2 = (right - pos) / dir;
-		if (t2 >= minT && (!objHit || t2 < intersection.t)) {
-		    Point3d iPoint = new Point3d((Tuple3d)r.getDirection());
-		    iPoint.scaleAdd(t2, r.getPoint());
-		    double[] temp = new double[3];
-		    iPoint.get(temp);
-		    if (!(temp[i1] < left || temp[i1] > right ||
-			  temp[i2] < left || temp[i2] > right)) {
-			objHit = true;
-			intersection.setHitPoint(iPoint);
-			intersection.t = t2;
-			if (all) {
-			    intersection.getNormal().set(0,0,0);
-			    double[] nVector = new double[3];
-			    intersection.getNormal().get(nVector);
-			    nVector[i] = 1.0;
-			    intersection.getNormal().set(nVector);
-			    uvPlane(intersection, i1, i2);
-			}
-		    }
+	    if (dir == 0.0)
+		continue;
+
+	    // the faces at left and right along this axis
+	    for (int side = 0; side < 2; side++) {
+		double t = ((side == 0 ? left : right) - pos) / dir;
+		if (t < minT || (objHit && t >= intersection.t))
+		    continue;
+
+		double hx = t*dx + p.x, hy = t*dy + p.y, hz = t*dz + p.z;
+		double h1 = pick(i1, hx, hy, hz), h2 = pick(i2, hx, hy, hz);
+		if (h1 < left || h1 > right || h2 < left || h2 > right)
+		    continue;
+
+		objHit = true;
+		intersection.t = t;
+		intersection.getHitPoint().set(hx, hy, hz);
+		if (all) {
+		    double n = side == 0 ? -1.0 : 1.0;
+		    intersection.getNormal().set(i == 0 ? n : 0,
+						 i == 1 ? n : 0,
+						 i == 2 ? n : 0);
+		    uvPlane(intersection, i1, i2);
 		}
 	    }
 	}
@@ -102,14 +94,67 @@ class Box extends Shape
 	}
 	return objHit;
     }
+
+    /** returns x, y or z for i = 0, 1 or 2 */
+    private static double pick(int i, double x, double y, double z)
+    {
+	return i == 0 ? x : (i == 1 ? y : z);
+    }
+    
+    /** checks whether the ray crosses a face of the box between minT and
+     *  maxT (with the slab test; nothing is allocated or computed besides
+     *  the t values where the ray enters and leaves the box)
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
+    {
+	Point3d  p = r.getPoint();
+	Vector3d d = r.getDirection();
+	double tNear = Double.NEGATIVE_INFINITY, tFar = Double.POSITIVE_INFINITY;
+	double t1, t2;
+
+	if (d.x != 0.0) {
+	    t1 = (-1.0 - p.x) / d.x;
+	    t2 = ( 1.0 - p.x) / d.x;
+	    if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+	    if (t1 > tNear) tNear = t1;
+	    if (t2 < tFar)  tFar  = t2;
+	} else if (p.x < -1.0 || p.x > 1.0) {
+	    return false;
+	}
+
+	if (d.y != 0.0) {
+	    t1 = (-1.0 - p.y) / d.y;
+	    t2 = ( 1.0 - p.y) / d.y;
+	    if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+	    if (t1 > tNear) tNear = t1;
+	    if (t2 < tFar)  tFar  = t2;
+	} else if (p.y < -1.0 || p.y > 1.0) {
+	    return false;
+	}
+
+	if (d.z != 0.0) {
+	    t1 = (-1.0 - p.z) / d.z;
+	    t2 = ( 1.0 - p.z) / d.z;
+	    if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+	    if (t1 > tNear) tNear = t1;
+	    if (t2 < tFar)  tFar  = t2;
+	} else if (p.z < -1.0 || p.z > 1.0) {
+	    return false;
+	}
+
+	if (tNear > tFar)
+	    return false;
+
+	// The ray enters the box at tNear and leaves it at tFar
+	return (tNear >= minT && tNear <= maxT) || (tFar >= minT && tFar <= maxT);
+    }
     
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((pick(x, ipoint.x, ipoint.y, ipoint.z)+1.0)/2);
+	intersection.setV((pick(y, ipoint.x, ipoint.y, ipoint.z)+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
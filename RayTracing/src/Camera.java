@@ -31,6 +31,23 @@ class Camera extends RaytracerObject
     /** Camera coordinate system (u, v are scaled based on image size) */
     Vector3d u, v, n;
 
+    // ------
+    // Frozen by setup() for the image being rendered
+
+    /** image size */
+    int width, height;
+
+    /** origin of every primary ray */
+    double originX, originY, originZ;
+
+    /** n * near */
+    double nearX, nearY, nearZ;
+
+    /** u * x for the x of each image column i (3 values per column, at
+     *  3*i), and v * y for the y of each row j (at 3*j)
+     */
+    double[] columnU, rowV;
+
     //-----------------------------------------------------------------------
 
     /** if the camera is specified by default values, pass a null as tokenizer
@@ -53,11 +70,7 @@ class Camera extends RaytracerObject
     }
 
     public Camera()
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
     {
-        super(null);
     }
 
     /** Set up camera */
@@ -66,6 +79,46 @@ class Camera extends RaytracerObject
         aspect = (double)width / height;
 
         computeUVN();
+
+        // Freeze everything primary rays need for this image size
+        this.width  = width;
+        this.height = height;
+
+        originX = eye.x;
+        originY = eye.y;
+        originZ = eye.z-near;
+
+        nearX = n.x*near;
+        nearY = n.y*near;
+        nearZ = n.z*near;
+
+        columnU = new double[3*width];
+        for (int i = 0; i < width; i++) {
+            double x = pixelX(i);
+            columnU[3*i]   = u.x*x;
+            columnU[3*i+1] = u.y*x;
+            columnU[3*i+2] = u.z*x;
+        }
+
+        rowV = new double[3*height];
+        for (int j = 0; j < height; j++) {
+            double y = pixelY(j);
+            rowV[3*j]   = v.x*y;
+            rowV[3*j+1] = v.y*y;
+            rowV[3*j+2] = v.z*y;
+        }
+    }
+
+    /** x coordinate in [-1, 1] of image column i */
+    public double pixelX(int i)
+    {
+        return ((double)i)/(width  - 1) * 2 - 1;
+    }
+
+    /** y coordinate in [-1, 1] of image row j */
+    public double pixelY(int j)
+    {
+        return ((double)j)/(height - 1) * 2 - 1;
     }
 
     //-----------------------------------------------------------------------
@@ -128,16 +181,52 @@ class Camera extends RaytracerObject
      */
     public Ray pixelRay(double x, double y)
     {
-        // Create and compute ray through pixel
-    	computeUVN();
-    	Point3d origin = new Point3d(eye.x,eye.y,eye.z-near);
-    	Vector3d direction = new Vector3d(u.x*x + v.x*y - n.x*near,
-    									  u.y*x + v.y*y - n.y*near,
-    									  u.z*x + v.z*y - n.z*near);
+        Ray r = new Ray();
+        pixelRay(x, y, r);
+        return r;
+    }
+
+    /** same as pixelRay(x, y), but stores the ray in r */
+    public void pixelRay(double x, double y, Ray r)
+    {
+        // Compute ray through pixel (u, v, n were computed in setup();
+        // recomputing them here would race between the rendering threads)
+    	Vector3d direction = r.getDirection();
+    	r.getPoint().set(originX, originY, originZ);
+    	direction.set(u.x*x + v.x*y - nearX,
+    				  u.y*x + v.y*y - nearY,
+    				  u.z*x + v.z*y - nearZ);
         direction.normalize();
+    }
 
-        
-        return new Ray(origin, direction);
+    /** compute the (normalized) directions of the rays through the
+     *  pixels in columns [x0, x1) and rows [y0, y1) of the image set up
+     *  in setup(), all of which start at (originX, originY, originZ)
+     *
+     *  The direction of pixel (i,j) is stored in dirs at
+     *  3 * ((i-x0) * (y1-y0) + (j-y0)); each is exactly the same as
+     *  pixelRay(pixelX(i), pixelY(j)) would compute, but only takes three
+     *  additions and a normalization
+     */
+    public void pixelRays(int x0, int y0, int x1, int y1, double[] dirs)
+    {
+        int k = 0;
+
+        for (int i = x0; i < x1; i++) {
+            double ux = columnU[3*i], uy = columnU[3*i+1], uz = columnU[3*i+2];
+
+            for (int j = y0; j < y1; j++, k += 3) {
+                double dx = ux + rowV[3*j]   - nearX;
+                double dy = uy + rowV[3*j+1] - nearY;
+                double dz = uz + rowV[3*j+2] - nearZ;
+
+                // (same arithmetic as Vector3d.normalize())
+                double norm = 1.0/Math.sqrt(dx*dx + dy*dy + dz*dz);
+                dirs[k]   = dx*norm;
+                dirs[k+1] = dy*norm;
+                dirs[k+2] = dz*norm;
+            }
+        }
     }
 
     public void print(PrintStream out)
@@ -12,6 +12,11 @@ class Cone extends Shape
 {
     public static String keyword = "cone";
 
+    /** constructor for shapes made in code */
+    public Cone()
+    {
+    }
+
     /** constructor from tokenizer */
     public Cone(StreamTokenizer tokenizer)
 	throws ParseException, IOException, NoSuchMethodException,
@@ -25,104 +30,149 @@ class Cone extends Shape
 
     // -----------------------------------------------------------------------
 
+    /** bounds of the cone (base radius 1, from z=0 to z=1) */
+    void getObjectBounds(double[] bounds)
+    {
+	double[] b = { -1, -1, 0, 1, 1, 1 };
+	System.arraycopy(b, 0, bounds, 0, 6);
+    }
+
+    // -----------------------------------------------------------------------
+
     /** computes the ray intersection point of a cone with base radius 1
      *  on the z axis from z=0 to z=1, with the tip at z=0 (and base at z=1)
+     *
+     *  The t values of the cone and the cap are found first; the other
+     *  fields are only computed for the closer of them
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	ISect icone = new ISect(), icap1 = new ISect();
-	boolean hit_cone, hit_cap1;
+	Point3d rp = r.getPoint();
+	Vector3d d = r.getDirection();
+
+	// normalized copy of the direction (r is left alone)
+	double dlen = d.length();
+	double norm = 1.0/Math.sqrt(d.x*d.x + d.y*d.y + d.z*d.z);
+	double dx = d.x*norm, dy = d.y*norm, dz = d.z*norm;
+
+	minT *= dlen;
+
+	// t values along the normalized ray (NaN if missed)
+	double tCone = hitConeCap(rp, dx, dy, dz, minT);
+	double tCap1 = hitCap1(rp, dx, dy, dz, minT);
+
+	boolean hit_cone = !Double.isNaN(tCone);
+	boolean hit_cap1 = !Double.isNaN(tCap1);
+
+	double icone = tCone / dlen, icap1 = tCap1 / dlen;
+	double t;
 
-	hit_cone = hitConeCap(r, icone, all, minT);
-	hit_cap1 = hitCap1(r, icap1, all, minT);
+	if (hit_cone && (!hit_cap1 || icone < icap1)) {
+	    t = tCone;
+	    if (all) {
+		Point3d ipoint = intersection.getHitPoint();
+		ipoint.set(t*dx + rp.x, t*dy + rp.y, t*dz + rp.z);
+
+		// normal = ipoint x (ipoint x (0,0,1))
+		double cx = ipoint.y*1 - ipoint.z*0;
+		double cy = 0*ipoint.z - 1*ipoint.x;
+		double cz = ipoint.x*0 - ipoint.y*0;
+		intersection.getNormal().set(ipoint.y*cz - ipoint.z*cy,
+					     cx*ipoint.z - cz*ipoint.x,
+					     ipoint.x*cy - ipoint.y*cx);
+		intersection.getNormal().normalize();
+
+		uvConeCap(intersection);
+	    }
+	} else if (hit_cap1 && (!hit_cone || icap1 < icone)) {
+	    t = tCap1;
+	    if (all) {
+		intersection.getHitPoint().set(t*dx + rp.x, t*dy + rp.y,
+					       t*dz + rp.z);
+		intersection.getNormal().set(0, 0, 1);
 
-	if (hit_cone && (!hit_cap1 || icone.t < icap1.t)) {
-	    intersection.set(icone);
-	} else if (hit_cap1 && (!hit_cone || icap1.t < icone.t)) {
-	    intersection.set(icap1);
+		uvPlane(intersection, 0, 1);
+	    }
 	} else {
 	    return false;
 	}
 
+	intersection.t = t / dlen;
 	intersection.setHitObject(this);
 
 	return true;
-
     }
 
-    private boolean hitConeCap(Ray r, ISect intersection, boolean all,
-			       double minT)
+    /** checks whether the ray crosses the cone between minT and maxT
+     *  (trying the base, then the cone surface, and stopping at the first
+     *  part in the way, without computing anything else)
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
     {
-	double dlen, a, b, c, d, t1, t2, z1, z2;
-	boolean t1bad, t2bad;
-	double epsilon = 1e-6;
-
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
+	Vector3d d = r.getDirection();
+
+	double dlen = d.length();
+	double norm = 1.0/Math.sqrt(d.x*d.x + d.y*d.y + d.z*d.z);
+	double dx = d.x*norm, dy = d.y*norm, dz = d.z*norm;
 
 	minT *= dlen;
 
- 	a = rd.x * rd.x + rd.y * rd.y - rd.z * rd.z;
-	b = rd.x * rp.x + rd.y * rp.y - rd.z * rp.z;
+	// (NaN fails the comparisons)
+	return hitCap1(rp, dx, dy, dz, minT) / dlen <= maxT ||
+	       hitConeCap(rp, dx, dy, dz, minT) / dlen <= maxT;
+    }
+
+    /** t value of the closest hit with the cone surface above minT, along
+     *  the ray with origin rp and normalized direction (dx, dy, dz)
+     *  (NaN if there is none)
+     */
+    private static double hitConeCap(Point3d rp, double dx, double dy,
+				     double dz, double minT)
+    {
+	double a, b, c, d, t1, t2, z1, z2;
+	boolean t1bad, t2bad;
+	double epsilon = 1e-6;
+
+ 	a = dx * dx + dy * dy - dz * dz;
+	b = dx * rp.x + dy * rp.y - dz * rp.z;
 	c = rp.x * rp.x + rp.y * rp.y - rp.z * rp.z;
 
 	if (Math.abs(a) < epsilon) {
 	    /* One intersection point */
 	    t1 = -0.5*c / b;
-	    z1 = rp.z + t1 * rd.z;
+	    z1 = rp.z + t1 * dz;
 
 	    if (t1 < minT || z1 < 0 || z1 > 1)
-	      return false;
+	      return Double.NaN;
 
-	    intersection.t = t1;
+	    return t1;
 	} else {
 	    d = b*b - a*c;
 
 	    if (d < 0.0)
-	      return false;
+	      return Double.NaN;
 	    d = Math.sqrt(d);
 
 	    t1 = (-b + d) / a;
 	    t2 = (-b - d) / a;
 
-	    z1 = rp.z + t1 * rd.z;
-	    z2 = rp.z + t2 * rd.z;
+	    z1 = rp.z + t1 * dz;
+	    z2 = rp.z + t2 * dz;
 
 	    t1bad = (t1 < minT || z1 < 0.0 || z1 > 1.0);
 	    t2bad = (t2 < minT || z2 < 0.0 || z2 > 1.0);
 
 	    if (t1bad && t2bad) {
-		return false;
+		return Double.NaN;
 	    } else if (t1bad) {
-		intersection.t = t2;
+		return t2;
 	    } else if (t2bad) {
-		intersection.t = t1;
+		return t1;
 	    } else {
-		intersection.t = (t1 < t2) ? t1 : t2;
+		return (t1 < t2) ? t1 : t2;
 	    }
 	}
-
-	if (all) {
-	    Point3d ipoint = intersection.getHitPoint();
-	    Vector3d inorm = intersection.getNormal();
-
-	    ipoint.scale(intersection.t, rd);
-	    ipoint.add(rp);
-
-	    Vector3d ipv = new Vector3d(ipoint);
-
-	    inorm.cross(ipv, new Vector3d(0,0,1));
-	    inorm.cross(ipv, inorm);
-	    inorm.normalize();
-
-	    uvConeCap(intersection);
-	}
-
-	intersection.t /= dlen;
-
-	return true;
     }
 
     private void uvConeCap(ISect intersection)
@@ -151,54 +201,41 @@ class Cone extends Shape
 	intersection.getDpDv().normalize();
     }
 
-    private boolean hitCap1(Ray r, ISect intersection, boolean all, 
-			    double minT)
+    /** t value of the hit with the base (unit disk at z=1) above minT,
+     *  along the ray with origin rp and normalized direction (dx, dy, dz)
+     *  (NaN if there is none)
+     */
+    private static double hitCap1(Point3d rp, double dx, double dy,
+				  double dz, double minT)
     {
-	double pz, dz, t, dlen;
-	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
+	double pz, t;
 
 	pz = rp.z;
-	dz = rd.z;
 
 	if (dz == 0.0)
-	  return false;
+	  return Double.NaN;
 
 	t = (1 - pz) / dz;
 
 	if (t < minT)
-	  return false;
-
-	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
+	  return Double.NaN;
 
-	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
-
-	    if (all) {
-		intersection.getNormal().set(0, 0, 1);
-		
-		uvPlane(intersection, 0, 1);
-	    }
-	} else {
-	    return false;
-	}
+	double x = t * dx + rp.x, y = t * dy + rp.y;
 
-	return true;
+	if (x * x + y * y <= 1.0)
+	    return t;
+	else
+	    return Double.NaN;
     }
 
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
+	double ix = x == 0 ? ipoint.x : (x == 1 ? ipoint.y : ipoint.z);
+	double iy = y == 0 ? ipoint.x : (y == 1 ? ipoint.y : ipoint.z);
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((ix+1.0)/2);
+	intersection.setV((iy+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
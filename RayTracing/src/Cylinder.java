@@ -13,6 +13,11 @@ class Cylinder extends Shape
 {
     public static String keyword = "cylinder";
 
+    /** constructor for shapes made in code */
+    public Cylinder()
+    {
+    }
+
     /** constructor from tokenizer */
     public Cylinder(StreamTokenizer tokenizer)
 	throws ParseException, IOException, NoSuchMethodException,
@@ -26,103 +31,161 @@ class Cylinder extends Shape
 
     // -----------------------------------------------------------------------
 
+    /** bounds of the cylinder (radius 1, from z=0 to z=1) */
+    void getObjectBounds(double[] bounds)
+    {
+	double[] b = { -1, -1, 0, 1, 1, 1 };
+	System.arraycopy(b, 0, bounds, 0, 6);
+    }
+
+    // -----------------------------------------------------------------------
+
     /** computes the ray intersection point of a cylinder of radius 1
      *  on the z axis from z=0 to z=1
+     *
+     *  The t values of the tube and the two caps are found first; the
+     *  other fields are only computed for the closest of them
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	ISect itube = new ISect(), icap0 = new ISect(), icap1 = new ISect();
-	boolean hit_tube, hit_cap0, hit_cap1;
+	Point3d rp = r.getPoint();
+	Vector3d d = r.getDirection();
+
+	// normalized copy of the direction (r is left alone)
+	double dlen = d.length();
+	double norm = 1.0/Math.sqrt(d.x*d.x + d.y*d.y + d.z*d.z);
+	double dx = d.x*norm, dy = d.y*norm, dz = d.z*norm;
+
+	minT *= dlen;
 
-	hit_tube = hitTube(r, itube, all, minT);
-	hit_cap0 = hitCap0(r, icap0, all, minT);
-	hit_cap1 = hitCap1(r, icap1, all, minT);
+	// t values along the normalized ray (NaN if missed)
+	double tTube = hitTube(rp, dx, dy, dz, minT);
+	double tCap0 = hitCap(rp, dx, dy, dz, minT, 0.0);
+	double tCap1 = hitCap(rp, dx, dy, dz, minT, 1.0);
+
+	boolean hit_tube = !Double.isNaN(tTube);
+	boolean hit_cap0 = !Double.isNaN(tCap0);
+	boolean hit_cap1 = !Double.isNaN(tCap1);
+
+	double itube = tTube / dlen, icap0 = tCap0 / dlen, icap1 = tCap1 / dlen;
+	double t;
 
 	if (hit_tube && 
-	    (!hit_cap0 || itube.t < icap0.t) && 
-	    (!hit_cap1 || itube.t < icap1.t)) {
-	    intersection.set(itube);
+	    (!hit_cap0 || itube < icap0) && 
+	    (!hit_cap1 || itube < icap1)) {
+	    t = tTube;
+	    if (all) {
+		setHitPoint(intersection, rp, dx, dy, dz, t);
+		Point3d ipoint = intersection.getHitPoint();
+		intersection.getNormal().set(ipoint.x, ipoint.y, 0);
+		intersection.getNormal().normalize();
+
+		uvTube(intersection);
+	    }
 	} else if (hit_cap0 && 
-		   (!hit_tube || icap0.t < itube.t) && 
-		   (!hit_cap1 || icap0.t < icap1.t)) {
-	    intersection.set(icap0);
+		   (!hit_tube || icap0 < itube) && 
+		   (!hit_cap1 || icap0 < icap1)) {
+	    t = tCap0;
+	    if (all) {
+		setHitPoint(intersection, rp, dx, dy, dz, t);
+		intersection.getNormal().set(0, 0, -1);
+
+		uvPlane(intersection, 0, 1);
+	    }
 	} else if (hit_cap1 && 
-		   (!hit_tube || icap1.t < itube.t) && 
-		   (!hit_cap0 || icap1.t < icap0.t)) {
-	    intersection.set(icap1);
+		   (!hit_tube || icap1 < itube) && 
+		   (!hit_cap0 || icap1 < icap0)) {
+	    t = tCap1;
+	    if (all) {
+		setHitPoint(intersection, rp, dx, dy, dz, t);
+		intersection.getNormal().set(0, 0, 1);
+
+		uvPlane(intersection, 0, 1);
+	    }
 	} else {
 	    return false;
 	}
 
+	intersection.t = t / dlen;
 	intersection.setHitObject(this);
 
 	return true;
     }
 
-    private boolean hitTube(Ray r, ISect intersection, boolean all,
-			    double minT)
+    /** checks whether the ray crosses the cylinder between minT and maxT
+     *  (trying the caps, then the tube, and stopping at the first part in
+     *  the way, without computing anything else)
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
     {
-	double dlen, a, b, c, d, t1, t2, z1, z2;
-	boolean t1bad, t2bad;
-	double epsilon = 1e-6;
-
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
+	Vector3d d = r.getDirection();
+
+	double dlen = d.length();
+	double norm = 1.0/Math.sqrt(d.x*d.x + d.y*d.y + d.z*d.z);
+	double dx = d.x*norm, dy = d.y*norm, dz = d.z*norm;
 
 	minT *= dlen;
 
-	a = rd.x * rd.x + rd.y * rd.y;
+	// (NaN fails the comparisons)
+	return hitCap(rp, dx, dy, dz, minT, 0.0) / dlen <= maxT ||
+	       hitCap(rp, dx, dy, dz, minT, 1.0) / dlen <= maxT ||
+	       hitTube(rp, dx, dy, dz, minT) / dlen <= maxT;
+    }
+
+    /** point at t along the ray with origin rp and normalized direction
+     *  (dx, dy, dz)
+     */
+    private static void setHitPoint(ISect intersection, Point3d rp,
+				    double dx, double dy, double dz, double t)
+    {
+	intersection.getHitPoint().set(t*dx + rp.x, t*dy + rp.y, t*dz + rp.z);
+    }
+
+    /** t value of the closest hit with the tube above minT, along the
+     *  ray with origin rp and normalized direction (dx, dy, dz)
+     *  (NaN if there is none)
+     */
+    private static double hitTube(Point3d rp, double dx, double dy, double dz,
+				  double minT)
+    {
+	double a, b, c, d, t1, t2, z1, z2;
+	boolean t1bad, t2bad;
+	double epsilon = 1e-6;
+
+	a = dx * dx + dy * dy;
 	if (a < epsilon * epsilon)
-	  return false;
+	  return Double.NaN;
 
-	b = rd.x * rp.x + rd.y * rp.y;
+	b = dx * rp.x + dy * rp.y;
 	c = rp.x * rp.x + rp.y * rp.y - 1;
 	d = b*b - a*c;
 
 	if (d < 0.0)
-	  return false;
+	  return Double.NaN;
 	d = Math.sqrt(d);
 
 	t1 = (-b + d) / a;
 	t2 = (-b - d) / a;
 
 	if (t1 < minT && t2 < minT)
-	  return false;
+	  return Double.NaN;
 
-	z1 = rp.z + t1 * rd.z;
-	z2 = rp.z + t2 * rd.z;
+	z1 = rp.z + t1 * dz;
+	z2 = rp.z + t2 * dz;
 
 	t1bad = (t1 < minT || z1 < 0.0 || z1 > 1.0);
 	t2bad = (t2 < minT || z2 < 0.0 || z2 > 1.0);
 
 	if (t1bad && t2bad) {
-	    return false;
+	    return Double.NaN;
 	} else if (t1bad) {
-	    intersection.t = t2;
+	    return t2;
 	} else if (t2bad) {
-	    intersection.t = t1;
+	    return t1;
 	} else {
-	    intersection.t = (t1 < t2) ? t1 : t2;
+	    return (t1 < t2) ? t1 : t2;
 	}
-
-	if (all) {
-	    Point3d ipoint = intersection.getHitPoint();
-	    Vector3d inorm = intersection.getNormal();
-
-	    ipoint.scale(intersection.t, rd);
-	    ipoint.add(rp);
-
-	    inorm.set(ipoint.x, ipoint.y, 0);
-	    inorm.normalize();
-
-	    uvTube(intersection);
-	}
-
-	intersection.t /= dlen;
-
-	return true;
     }
 
     private void uvTube(ISect intersection)
@@ -148,96 +211,42 @@ class Cylinder extends Shape
 	intersection.getDpDv().set(0, 0, 1);
     }
 
-
-    private boolean hitCap0(Ray r, ISect intersection, boolean all,
-			    double minT)
-    {
-	double pz, dz, t, dlen;
-	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
-
-	pz = rp.z;
-	dz = rd.z;
-
-	if (dz == 0.0)
-	  return false;
-
-	t = -pz / dz;
-
-	if (t < minT)
-	  return false;
-
-	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
-
-	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
-
-	    if (all) {
-		intersection.getNormal().set(0, 0, -1);
-		
-		uvPlane(intersection, 0, 1);
-	    }
-	} else {
-	    return false;
-	}
-
-	return true;
-    }
-
-    private boolean hitCap1(Ray r, ISect intersection, boolean all, 
-			    double minT)
+    /** t value of the hit with the cap (unit disk) in the plane z=capZ,
+     *  above minT, along the ray with origin rp and normalized direction
+     *  (dx, dy, dz) (NaN if there is none)
+     */
+    private static double hitCap(Point3d rp, double dx, double dy, double dz,
+				 double minT, double capZ)
     {
-	double pz, dz, t, dlen;
-	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
-
-	minT *= dlen;
+	double pz, t;
 
 	pz = rp.z;
-	dz = rd.z;
 
 	if (dz == 0.0)
-	  return false;
+	  return Double.NaN;
 
-	t = (1 - pz) / dz;
+	t = (capZ - pz) / dz;
 
 	if (t < minT)
-	  return false;
+	  return Double.NaN;
 
-	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
+	double x = t * dx + rp.x, y = t * dy + rp.y;
 
-	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
-
-	    if (all) {
-		intersection.getNormal().set(0, 0, 1);
-		
-		uvPlane(intersection, 0, 1);
-	    }
-	} else {
-	    return false;
-	}
-
-	return true;
+	if (x * x + y * y <= 1.0)
+	    return t;
+	else
+	    return Double.NaN;
     }
 
+    /** texture coordinates for a cap (in the plane of axes x and y) */
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
+	double ix = x == 0 ? ipoint.x : (x == 1 ? ipoint.y : ipoint.z);
+	double iy = y == 0 ? ipoint.x : (y == 1 ? ipoint.y : ipoint.z);
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((ix+1.0)/2);
+	intersection.setV((iy+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
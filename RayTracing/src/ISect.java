@@ -28,6 +28,23 @@ public class ISect
     Vector3d dPdU = new Vector3d();
     Vector3d dPdV = new Vector3d();
 
+    // index of the part of the hit object that was hit (the triangle of
+    // a Mesh)
+    int primitive = -1;
+
+    // traversal stack for objects with their own hierarchy (see Mesh),
+    // made when first needed (each thread has its own ISects)
+    int[] stack = null;
+
+    // scratch space for tracing through the shapes of an instance's
+    // prototype (see Instance) or of a PrimitiveSet, made when first
+    // needed (see getNested())
+    RenderContext nested = null;
+
+    // counters of the thread this belongs to (see RenderContext), which
+    // the nested context counts into as well
+    RenderStats stats = null;
+
     //------------------------------------------------------------------------
     // accessors
 
@@ -39,6 +56,14 @@ public class ISect
     double    getV()         { return v; }
     Vector3d  getDpDu()      { return dPdU; }
     Vector3d  getDpDv()      { return dPdV; }
+
+    RenderContext getNested()
+    {
+        if (nested == null)
+            nested = stats != null ? new RenderContext(stats)
+                                   : new RenderContext();
+        return nested;
+    }
     
     void setT(double newT)           { t = newT; }
     void setHitObject(Shape obj)     { hitObject = obj; }
@@ -60,6 +85,8 @@ public class ISect
 
         dPdU.set(other.dPdU);
         dPdV.set(other.dPdV);
+
+        primitive = other.primitive;
     }
 
     public String toString()
@@ -0,0 +1,197 @@
+/* class Instance
+ * Ray-object intersections for an instance of a prototype (see
+ * Prototype): the prototype's shapes, placed in the scene by the
+ * instance's transformation.  An instance holds nothing but the inverse
+ * of the transformation (its top 3 rows, as floats, as in PrimitiveSet,
+ * instead of Shape's matrices) and a reference to the prototype, whose
+ * hierarchy is traversed in its space.
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+import java.text.ParseException;
+import java.lang.reflect.*;
+
+class Instance extends Shape
+{
+    public static String keyword = "instance";
+
+    // Name of the prototype, and the prototype (looked up by the scene)
+    String prototypeName = "";
+    Prototype prototype  = null;
+
+    // Inverse transformation (rows 0 to 2 of the matrix)
+    float[] inverse = { 1, 0, 0, 0,  0, 1, 0, 0,  0, 0, 1, 0 };
+
+    //------------------------------------------------------------------------
+
+    /** constructor for shapes made in code */
+    public Instance()
+    {
+	M = MInverse = MTInverse = null;
+    }
+
+    /** constructor from tokenizer */
+    public Instance(StreamTokenizer tokenizer)
+	throws ParseException, IOException, NoSuchMethodException,
+	       ClassNotFoundException,IllegalAccessException,
+	       InvocationTargetException
+    {
+	super(tokenizer);
+	M = MInverse = MTInverse = null;
+
+	addSpec("prototype", "setPrototypeName", "java.lang.String");
+
+	read(tokenizer);
+    }
+
+    public void setPrototypeName(String newName) { prototypeName = newName; }
+
+    /** look up the prototype in scene s (if it isn't set yet) */
+    public void resolve(Scene s)
+    {
+	if (prototype == null)
+	  prototype = s.prototypes.get(prototypeName);
+	if (prototype == null)
+	  throw new RuntimeException("Undefined prototype " + prototypeName);
+    }
+
+    /** keep the inverse of mat as the transformation */
+    public void setMatrix(Matrix4d mat)
+    {
+	Matrix4d m = new Matrix4d(mat);
+	m.invert();
+
+	float[] a = inverse;
+	a[0] = (float)m.m00;  a[1]  = (float)m.m01;
+	a[2] = (float)m.m02;  a[3]  = (float)m.m03;
+	a[4] = (float)m.m10;  a[5]  = (float)m.m11;
+	a[6] = (float)m.m12;  a[7]  = (float)m.m13;
+	a[8] = (float)m.m20;  a[9]  = (float)m.m21;
+	a[10] = (float)m.m22; a[11] = (float)m.m23;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** bounds of the shapes of the prototype */
+    void getObjectBounds(double[] bounds)
+    {
+	System.arraycopy(prototype.bounds, 0, bounds, 0, 6);
+    }
+
+    /** bounds of the prototype transformed by the inverse of the stored
+     *  inverse (which is what is intersected)
+     */
+    public void getWorldBounds(double[] bounds, int offset)
+    {
+	float[] a = inverse;
+	Matrix4d m = new Matrix4d();
+	m.m00 = a[0];  m.m01 = a[1];  m.m02 = a[2];   m.m03 = a[3];
+	m.m10 = a[4];  m.m11 = a[5];  m.m12 = a[6];   m.m13 = a[7];
+	m.m20 = a[8];  m.m21 = a[9];  m.m22 = a[10];  m.m23 = a[11];
+	m.m33 = 1;
+	m.invert();
+	transformBounds(prototype.bounds, m, bounds, offset);
+    }
+
+    /** transform r into the space of the prototype */
+    public void toObjectSpace(Ray r, Ray objRay)
+    {
+	float[] a = inverse;
+	Point3d  o = r.getPoint(),     po = objRay.getPoint();
+	Vector3d d = r.getDirection(), pd = objRay.getDirection();
+
+	po.set(a[0]*o.x + a[1]*o.y + a[2]*o.z + a[3],
+	       a[4]*o.x + a[5]*o.y + a[6]*o.z + a[7],
+	       a[8]*o.x + a[9]*o.y + a[10]*o.z + a[11]);
+	pd.set(a[0]*d.x + a[1]*d.y + a[2]*d.z,
+	       a[4]*d.x + a[5]*d.y + a[6]*d.z,
+	       a[8]*d.x + a[9]*d.y + a[10]*d.z);
+    }
+
+    /** the hit point along r, and the normal by the inverse transpose */
+    void toWorldSpace(Ray r, ISect intersection)
+    {
+	float[] a = inverse;
+	Vector3d n = intersection.getNormal();
+
+	intersection.getHitPoint().scaleAdd(intersection.getT(),
+					    r.getDirection(), r.getPoint());
+	n.set(a[0]*n.x + a[4]*n.y + a[8]*n.z,
+	      a[1]*n.x + a[5]*n.y + a[9]*n.z,
+	      a[2]*n.x + a[6]*n.y + a[10]*n.z);
+    }
+
+    /** finds the closest hit with a shape of the prototype (which becomes
+     *  the hit object, so its material is used); with all, only that
+     *  shape (the hit object left by the first pass, see Shape.hit()) is
+     *  tested again, and the hit point and normal are left in the space
+     *  of the prototype
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	BVH bvh = prototype.bvh;
+	if (bvh == null)
+	  return false;
+
+	RenderContext ctx = intersection.getNested();
+	if (all) {
+	    Shape shape = intersection.getHitObject();
+	    Ray objRay = ctx.objRay;
+	    shape.toObjectSpace(r, objRay);
+	    if (!shape.hit(objRay, intersection, true, minT))
+	      return false;
+
+	    // from the space of the shape into that of the prototype
+	    intersection.getNormal().normalize();
+	    shape.toWorldSpace(r, intersection);
+	    return true;
+	}
+
+	Shape shape = bvh.closestHit(r, intersection, minT, ctx);
+	if (shape == null)
+	  return false;
+
+	intersection.setHitObject(shape);
+	return true;
+    }
+
+    /** the shapes of the prototype count their own tests */
+    boolean holdsShapes()
+    {
+	return true;
+    }
+
+    /** checks whether any shape of the prototype is in the way, filtering
+     *  the light by all of those that are (see transmittance())
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
+    {
+	BVH bvh = prototype.bvh;
+	if (bvh == null)
+	  return false;
+
+	// (stopping only once no light at all gets through; the scene's
+	// threshold applies to the whole shadow ray)
+	RenderContext ctx = scratch.getNested();
+	Vector3d tint = ctx.tint;
+	tint.set(1.0, 1.0, 1.0);
+	bvh.shadowTint(r, scratch, minT, maxT, tint, Double.MIN_VALUE, ctx);
+
+	return tint.x != 1.0 || tint.y != 1.0 || tint.z != 1.0;
+    }
+
+    /** the light let through by the shapes found by occludes() */
+    Vector3d transmittance(ISect scratch)
+    {
+	return scratch.getNested().tint;
+    }
+
+    public void print(PrintStream out)
+    {
+	super.print(out);
+
+	out.println("Prototype: " + prototypeName);
+	out.println("Inverse  : " + Arrays.toString(inverse));
+    }
+}
@@ -30,6 +30,12 @@ class Light extends RaytracerObject
 
     //------------------------------------------------------------------------
 
+    /** constructor for lights made in code (white point light at the
+     *  origin) */
+    public Light()
+    {
+    }
+
     /** constructor that reads the content of the object from the tokenizer */
     public Light(StreamTokenizer tokenizer)
         throws ParseException, IOException, NoSuchMethodException,
@@ -130,29 +136,36 @@ class Light extends RaytracerObject
      * of (1,1,1) and an occluded light has a tint of (0,0,0) -- intermediate
      * values can result from intervening transparent objects.
      * The tint does not affect the ambient light.
+     *
+     * The result is added to color; the temporaries come from ctx, so
+     * nothing is allocated.
      */
-    Vector3d compute(ISect intersection, Vector3d tint, Ray r)
+    void compute(ISect intersection, Vector3d tint, Ray r, RenderContext ctx,
+                 Vector3d color)
     {
         // Material for this object
         Material mat = intersection.getHitObject().getMaterialRef();
-        Point3d hitPoint = new Point3d(intersection.getHitPoint());
+        Point3d hitPoint = intersection.getHitPoint();
         //intersection.getHitObject().getMatrix().transform(hitPoint);
         //intersection.getHitObject().getInvTMatrix().transform(intersection.getNormal());
-        Vector3d l_vec;
+        Vector3d l_vec = ctx.l_vec;
         if (this.isDirectional()) {
-        	l_vec = new Vector3d(this.direction);
+        	l_vec.set(this.direction);
         } else {
-        	l_vec = new Vector3d(this.position.x-hitPoint.x, this.position.y-hitPoint.y, this.position.z-hitPoint.z);
+        	l_vec.set(this.position.x-hitPoint.x, this.position.y-hitPoint.y, this.position.z-hitPoint.z);
         }
         
-        Vector3d n_vec = new Vector3d(intersection.getNormal());
-        intersection.getHitObject().getInvTMatrix().transform(n_vec);
-        Vector3d r_vec = new Vector3d();
-        Vector3d v_vec = new Vector3d(r.getPoint().x-hitPoint.x, r.getPoint().y-hitPoint.y, r.getPoint().z-hitPoint.z);
-        Vector3d dist_vec = new Vector3d(l_vec);
-        Vector3d atten_vec = new Vector3d(1/ (attenuation.x + attenuation.y*dist_vec.x + attenuation.z*(dist_vec.x*dist_vec.x)),
-        								  1/ (attenuation.x + attenuation.y*dist_vec.y + attenuation.z*(dist_vec.y*dist_vec.y)),
-        								  1/ (attenuation.x + attenuation.y*dist_vec.z + attenuation.z*(dist_vec.z*dist_vec.z)));
+        // (the normal is already in world space)
+        Vector3d n_vec = ctx.n_vec;
+        n_vec.set(intersection.getNormal());
+        Vector3d r_vec = ctx.r_vec;
+        Vector3d v_vec = ctx.v_vec;
+        v_vec.set(r.getPoint().x-hitPoint.x, r.getPoint().y-hitPoint.y, r.getPoint().z-hitPoint.z);
+        // (distance components come from the unnormalized l_vec)
+        Vector3d atten_vec = ctx.atten_vec;
+        atten_vec.set(1/ (attenuation.x + attenuation.y*l_vec.x + attenuation.z*(l_vec.x*l_vec.x)),
+        			  1/ (attenuation.x + attenuation.y*l_vec.y + attenuation.z*(l_vec.y*l_vec.y)),
+        			  1/ (attenuation.x + attenuation.y*l_vec.z + attenuation.z*(l_vec.z*l_vec.z)));
         //double distance = l_vec.length();
        
         n_vec.normalize();
@@ -165,16 +178,19 @@ class Light extends RaytracerObject
         double r_dot_v = r_vec.dot(v_vec);
         
         // ambient
-        Vector3d ambient = new Vector3d(mat.getKa());
+        Vector3d ambient = ctx.ambient;
+        ambient.set(mat.getKa());
         
         // diffuse
-        Vector3d diffuse = new Vector3d(mat.getKd());
+        Vector3d diffuse = ctx.diffuse;
+        diffuse.set(mat.getKd());
         Tools.termwiseMul3d(diffuse, atten_vec);
         Tools.termwiseMul3d(diffuse, tint);
         diffuse.scale(Math.max(0, n_dot_l));
         
         //specular
-        Vector3d specular = new Vector3d(mat.getKs());
+        Vector3d specular = ctx.specular;
+        specular.set(mat.getKs());
         Tools.termwiseMul3d(specular, atten_vec);
         Tools.termwiseMul3d(specular, tint);
         double shininess = Math.pow(Math.max(0, r_dot_v), mat.getShiny());
@@ -182,18 +198,16 @@ class Light extends RaytracerObject
         
         // scale by T(u,v) if material has texture
         if (mat.hasTexture()) {
-        	Vector3d Tu = new Vector3d(mat.getTextureColor(intersection.getU(), intersection.getV()));
+        	Vector3d Tu = ctx.texColor;
+        	mat.getTextureColor(intersection.getU(), intersection.getV(), Tu);
         	Tools.termwiseMul3d(ambient, Tu);
         	Tools.termwiseMul3d(diffuse, Tu);
         }
         
-        System.out.println(specular);
-        
-        // Compute color
-        Vector3d rgb = new Vector3d(ambient);
-        rgb.add(diffuse);
-        rgb.add(specular);
+        // Compute color (ambient + diffuse + specular)
+        ambient.add(diffuse);
+        ambient.add(specular);
         
-        return rgb;
+        color.add(ambient);
     }
 }
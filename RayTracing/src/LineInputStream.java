@@ -74,8 +74,11 @@ public class LineInputStream
     public int readdata(byte b[]) throws IOException, EOFException
     {
 	int p = 0;
-	while(p < b.length)
-	  p += read(b, p, b.length-p);
+	while(p < b.length) {
+	    int n = read(b, p, b.length-p);
+	    if (n < 0) throw new EOFException();
+	    p += n;
+	}
 	return b.length;
     }
 }
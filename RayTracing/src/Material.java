@@ -57,14 +57,15 @@ class Material extends RaytracerObject
      *   - add variables and methods 
      */
 
+    /** constructor for materials made in code (black, until the colors
+     *  are set) */
+    public Material()
+    {
+    }
+
     /** constructor for default material */
     public Material(String matName)
-           throws ParseException, IOException, NoSuchMethodException,
-                  ClassNotFoundException,IllegalAccessException,
-                  InvocationTargetException
     {
-	super(null);
-
 	name = matName;
 	ambient = new Vector3d(0.2, 0.2, 0.2);
 	diffuse = new Vector3d(0.8, 0.8, 0.8);
@@ -96,22 +97,43 @@ class Material extends RaytracerObject
     /** Set up materials (read in textures) */
     public void setup(boolean verbose)
     {
-        // read the texture file
-        if (textureFileName != null) {
-            try {
-		if (verbose)
-		  System.out.println("Loading texture " + textureFileName);
-
-                textureImage = new RGBImage(textureFileName);
-            } catch (IOException E) {
-                System.err.println("Error while reading file " + 
-				   textureFileName);
-                textureImage = null;
-                textureFileName = null;
-            }
+        // read the texture file (unless it came with a scene snapshot, or
+        // the scene has loaded it already, see Scene.loadTextures())
+        if (textureFileName != null && textureImage == null) {
+            textureImage = readTexture(textureFileName, verbose);
+            if (textureImage == null)
+              textureFileName = null;
 	}
     }
 
+    /** read a texture image, or return null (after saying so) if it can't
+     *  be read
+     */
+    static RGBImage readTexture(String fileName, boolean verbose)
+    {
+        RenderEvents.TextureLoad event = new RenderEvents.TextureLoad();
+        event.begin();
+
+        try {
+            if (verbose)
+              System.out.println("Loading texture " + fileName);
+
+            RGBImage image = new RGBImage(fileName);
+
+            if (event.shouldCommit()) {
+                event.fileName = fileName;
+                event.width    = image.getWidth();
+                event.height   = image.getHeight();
+                event.commit();
+            }
+            return image;
+        } catch (IOException E) {
+            System.err.println("Error while reading file " + fileName +
+                               " (" + E.getMessage() + ")");
+            return null;
+        }
+    }
+
     // accessors
     public Vector3d getKa()      { return ambient; }
     public Vector3d getKd()      { return diffuse; }
@@ -144,16 +166,27 @@ class Material extends RaytracerObject
 
     /** returns the texture color corresponding to the u, v coordinates */
     public Vector3d getTextureColor(double u, double v)
+    {
+	Vector3d color = new Vector3d();
+	return getTextureColor(u, v, color) ? color : null;
+    }
+
+    /** stores the texture color corresponding to the u, v coordinates in
+     *  color (without allocating), and returns false if there is no
+     *  valid texture
+     */
+    public boolean getTextureColor(double u, double v, Vector3d color)
     {
 	if (checkerColor1 != null) {
-	    return getCheckerColor(u,v);
+	    color.set(getCheckerColor(u,v));
 	} else if (textureImage != null) {
-	    return getTextureImageColor(u,v);
+	    getTextureImageColor(u,v,color);
 	} else {
 	    // Illegal texture specification
 	    System.err.println("Unknown texture specification");
-	    return null;
+	    return false;
 	}
+	return true;
     }
 
     //------------------------------------------------------------------------
@@ -182,9 +215,13 @@ class Material extends RaytracerObject
 
     /** returns the image color corresponding to the u, v coordinates */
     public Vector3d getTextureImageColor(double u, double v)
+    {
+	return getTextureImageColor(u, v, new Vector3d());
+    }
+    public Vector3d getTextureImageColor(double u, double v, Vector3d color)
     {
 	return textureImage.getSubPixel((u * textureScaleU) % 1,
-					(v * textureScaleV) % 1);
+					(v * textureScaleV) % 1, color);
     }
 
     //------------------------------------------------------------------------
@@ -11,6 +11,9 @@ class MatrixStack
     Stack<Matrix4d> s = new Stack<Matrix4d>();
     Matrix4d topMatrix = new Matrix4d();
 
+    // Scratch matrix for the transformations
+    private Matrix4d m = new Matrix4d();
+
     public MatrixStack()
     {
 	topMatrix.setIdentity();
@@ -52,4 +55,33 @@ class MatrixStack
     {
 	return (Matrix4d)s.peek();
     }
+
+    //-----------------------------------------------------------------------
+    // Transformations (right multiplied onto the top matrix, like OpenGL)
+
+    /** emulates glTranslate */
+    public void translate(Vector3d t)
+    {
+	m.setIdentity();
+	m.setTranslation(t);
+	push(m);
+    }
+
+    /** emulates glRotate (angle in degrees) */
+    public void rotate(double angle, Vector3d axis)
+    {
+	m.setIdentity();
+	m.setRotation(new AxisAngle4d(axis, angle * Math.PI / 180));
+	push(m);
+    }
+
+    /** emulates glScale */
+    public void scale(Vector3d scale)
+    {
+	m.setIdentity();
+	m.setElement(0, 0, scale.x);
+	m.setElement(1, 1, scale.y);
+	m.setElement(2, 2, scale.z);
+	push(m);
+    }
 }
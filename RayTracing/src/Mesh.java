@@ -0,0 +1,576 @@
+/* class Mesh
+ * Ray-object intersections for a triangle mesh read from a Wavefront OBJ
+ * file.  The vertices and triangles are kept in flat arrays, with the
+ * triangles in the order of the leaves of a bounding volume hierarchy
+ * over them (see BVH).  Triangles are intersected with the watertight
+ * test of Woop, Benthin and Wald ("Watertight Ray/Triangle
+ * Intersection", JCGT 2013), so rays can't slip through the edges shared
+ * by neighbouring triangles.
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import javax.vecmath.*;
+import java.text.ParseException;
+import java.lang.reflect.*;
+
+class Mesh extends Shape
+{
+    public static String keyword = "mesh";
+
+    // OBJ file the mesh was read from
+    String fileName = null;
+
+    // Vertex positions (x, y, z), normals (x, y, z; null if the file has
+    // none) and texture coordinates (u, v; null if the file has none)
+    // (these are buffers, so they can be arrays or parts of a mapped mesh
+    // cache file, see MeshCache)
+    FloatBuffer positions = FloatBuffer.allocate(0);
+    FloatBuffer normals   = null;
+    FloatBuffer uvs       = null;
+
+    // Vertex indices of the triangles, 3 per triangle, in the order of
+    // the leaves of the hierarchy
+    IntBuffer triangles = IntBuffer.allocate(0);
+
+    // Hierarchy over the triangles, as in BVH, except that leaves refer
+    // to triangles directly (rather than through primIndices)
+    DoubleBuffer nodeBounds = DoubleBuffer.allocate(0);
+    IntBuffer    nodeInfo   = IntBuffer.allocate(0);
+
+    //------------------------------------------------------------------------
+
+    /** constructor for shapes made in code (see load()) */
+    public Mesh()
+    {
+    }
+
+    /** constructor from tokenizer (reads the mesh file) */
+    public Mesh(StreamTokenizer tokenizer)
+	throws ParseException, IOException, NoSuchMethodException,
+	       ClassNotFoundException,IllegalAccessException,
+	       InvocationTargetException
+    {
+	super(tokenizer);
+
+	addSpec("file", "setFileName", "java.lang.String");
+
+	read(tokenizer);
+
+	if (fileName == null)
+	  throw new ParseException("Mesh without a file", tokenizer.lineno());
+	load(fileName);
+    }
+
+    public void setFileName(String newName) { fileName = newName; }
+
+    //------------------------------------------------------------------------
+    // Loading
+
+    /** read the mesh in the OBJ file fileName, and build its hierarchy
+     *  (or map them from the file's cache, if it has an up to date one,
+     *  and write the cache if not; see MeshCache)
+     */
+    public void load(String fileName) throws IOException
+    {
+	this.fileName = fileName;
+
+	if (MeshCache.enabled) {
+	    try {
+		if (MeshCache.read(this, fileName)) {
+		    if (Trace.verbose)
+		      System.out.println("Mapped mesh " + fileName + " (" +
+					 triangleCount() + " triangles)");
+		    return;
+		}
+	    } catch (IOException | RuntimeException e) {
+		// (such as a mapping the system refuses)
+		System.err.println("Can't read mesh cache " +
+				   MeshCache.cacheName(fileName) + ": " + e);
+	    }
+	}
+
+	if (Trace.verbose)
+	  System.out.println("Loading mesh " + fileName);
+
+	try (BufferedReader in = new BufferedReader(
+		 new FileReader(fileName), 1 << 16)) {
+	    readOBJ(in);
+	} catch (IOException e) {
+	    throw new IOException(fileName + ": " + e.getMessage(), e);
+	}
+
+	buildHierarchy(Runtime.getRuntime().availableProcessors());
+
+	if (MeshCache.enabled) {
+	    try {
+		if (!MeshCache.write(this, fileName) && Trace.verbose)
+		  System.out.println("Mesh " + fileName + " is too large" +
+				     " for a cache");
+	    } catch (IOException e) {
+		System.err.println("Can't write mesh cache " +
+				   MeshCache.cacheName(fileName) + ": " + e);
+	    }
+	}
+    }
+
+    /** read the vertices and faces of an OBJ file (polygons are split into
+     *  fans of triangles; groups, materials and other statements are
+     *  skipped)
+     */
+    void readOBJ(BufferedReader in) throws IOException
+    {
+	// The file's positions, normals and texture coordinates
+	float[] v  = new float[3*1024];
+	float[] vn = new float[3*1024];
+	float[] vt = new float[2*1024];
+	int nv = 0, nvn = 0, nvt = 0;
+
+	// The mesh's vertices (each a combination of the above), by the
+	// face corner that made them, and by their 0 based indices
+	Map<String,Integer> vertices = new HashMap<String,Integer>();
+	int vertexCount = 0;
+	boolean hasNormals = false, hasUVs = false;
+
+	// Vertex indices of each vertex (position, uv, normal, or -1), and
+	// of the triangles
+	int[] vertexIndices = new int[3*1024];
+	int[] tris = new int[3*1024];
+	int triCount = 0;
+
+	int[] face = new int[16];
+
+	String line;
+	int lineno = 0;
+	while ((line = in.readLine()) != null) {
+	    lineno++;
+
+	    StringTokenizer words = new StringTokenizer(line);
+	    if (!words.hasMoreTokens())
+	      continue;
+
+	    try {
+		String command = words.nextToken();
+
+		if (command.equals("v")) {
+		    v = ensure(v, 3*nv + 3);
+		    for (int k = 0; k < 3; k++)
+		      v[3*nv+k] = Float.parseFloat(words.nextToken());
+		    nv++;
+		} else if (command.equals("vn")) {
+		    vn = ensure(vn, 3*nvn + 3);
+		    for (int k = 0; k < 3; k++)
+		      vn[3*nvn+k] = Float.parseFloat(words.nextToken());
+		    nvn++;
+		} else if (command.equals("vt")) {
+		    vt = ensure(vt, 2*nvt + 2);
+		    for (int k = 0; k < 2; k++)
+		      vt[2*nvt+k] = Float.parseFloat(words.nextToken());
+		    nvt++;
+		} else if (command.equals("f")) {
+		    int corners = 0;
+		    while (words.hasMoreTokens()) {
+			String corner = words.nextToken();
+
+			Integer vertex = vertices.get(corner);
+			if (vertex == null) {
+			    int[] index = parseCorner(corner, nv, nvt, nvn);
+			    // (spaces, so no key clashes with a face corner)
+			    String key = index[0] + " " + index[1] + " " +
+					 index[2];
+
+			    vertex = vertices.get(key);
+			    if (vertex == null) {
+				vertex = vertexCount++;
+				vertexIndices = ensure(vertexIndices,
+						       3*vertexCount);
+				System.arraycopy(index, 0, vertexIndices,
+						 3*vertex, 3);
+				hasUVs     |= index[1] >= 0;
+				hasNormals |= index[2] >= 0;
+				vertices.put(key, vertex);
+			    }
+			    // (relative indices count back from the last
+			    // vertex, so they can't be looked up as they are)
+			    if (corner.indexOf('-') < 0)
+			      vertices.put(corner, vertex);
+			}
+
+			face = ensure(face, corners + 1);
+			face[corners++] = vertex;
+		    }
+
+		    if (corners < 3)
+		      throw new IOException("face with fewer than 3 vertices");
+
+		    for (int i = 2; i < corners; i++) {
+			tris = ensure(tris, 3*triCount + 3);
+			tris[3*triCount]   = face[0];
+			tris[3*triCount+1] = face[i-1];
+			tris[3*triCount+2] = face[i];
+			triCount++;
+		    }
+		}
+	    } catch (NoSuchElementException | NumberFormatException e) {
+		throw new IOException("line " + lineno + ": bad statement " +
+				      line);
+	    } catch (IOException e) {
+		throw new IOException("line " + lineno + ": " +
+				      e.getMessage());
+	    }
+	}
+
+	// Gather the attributes of the vertices
+	float[] position = new float[3*vertexCount];
+	float[] normal   = hasNormals ? new float[3*vertexCount] : null;
+	float[] uv       = hasUVs     ? new float[2*vertexCount] : null;
+
+	for (int i = 0; i < vertexCount; i++) {
+	    int p = vertexIndices[3*i];
+	    int t = vertexIndices[3*i+1];
+	    int n = vertexIndices[3*i+2];
+
+	    System.arraycopy(v, 3*p, position, 3*i, 3);
+	    if (t >= 0)
+	      System.arraycopy(vt, 2*t, uv, 2*i, 2);
+	    if (n >= 0)
+	      System.arraycopy(vn, 3*n, normal, 3*i, 3);
+	}
+
+	positions = FloatBuffer.wrap(position);
+	normals   = normal != null ? FloatBuffer.wrap(normal) : null;
+	uvs       = uv     != null ? FloatBuffer.wrap(uv)     : null;
+	triangles = IntBuffer.wrap(Arrays.copyOf(tris, 3*triCount));
+    }
+
+    /** the (0 based) position, texture coordinate and normal indices of a
+     *  face corner "v", "v/vt", "v//vn" or "v/vt/vn" (-1 when missing),
+     *  given the number of each read so far
+     */
+    private static int[] parseCorner(String corner, int nv, int nvt, int nvn)
+	throws IOException
+    {
+	int[] index = { -1, -1, -1 };
+	int[] count = { nv, nvt, nvn };
+
+	int start = 0;
+	for (int k = 0; k < 3 && start <= corner.length(); k++) {
+	    int end = corner.indexOf('/', start);
+	    if (end < 0)
+	      end = corner.length();
+
+	    if (end > start) {
+		int i = Integer.parseInt(corner.substring(start, end));
+		i = i < 0 ? count[k] + i : i - 1;
+		if (i < 0 || i >= count[k])
+		  throw new IOException("bad vertex index " + corner);
+		index[k] = i;
+	    }
+	    start = end + 1;
+	}
+
+	if (index[0] < 0)
+	  throw new IOException("bad vertex index " + corner);
+	return index;
+    }
+
+    private static float[] ensure(float[] a, int n)
+    {
+	return n <= a.length ? a : Arrays.copyOf(a, Math.max(n, 2*a.length));
+    }
+
+    private static int[] ensure(int[] a, int n)
+    {
+	return n <= a.length ? a : Arrays.copyOf(a, Math.max(n, 2*a.length));
+    }
+
+    /** build the hierarchy over the triangles, using up to threads
+     *  threads, and put the triangles in the order of its leaves
+     */
+    void buildHierarchy(int threads)
+    {
+	int n = triangleCount();
+	if (n == 0) {
+	    nodeBounds = DoubleBuffer.allocate(0);
+	    nodeInfo   = IntBuffer.allocate(0);
+	    return;
+	}
+
+	double[] primBounds = new double[6*n];
+	for (int i = 0; i < n; i++) {
+	    int b = 6*i;
+	    for (int k = 0; k < 3; k++) {
+		primBounds[b+k]   = Double.POSITIVE_INFINITY;
+		primBounds[b+k+3] = Double.NEGATIVE_INFINITY;
+	    }
+	    for (int c = 0; c < 3; c++) {
+		int p = 3*triangles.get(3*i+c);
+		for (int k = 0; k < 3; k++) {
+		    primBounds[b+k]   = Math.min(primBounds[b+k],
+						 positions.get(p+k));
+		    primBounds[b+k+3] = Math.max(primBounds[b+k+3],
+						 positions.get(p+k));
+		}
+	    }
+	    BVH.pad(primBounds, b);
+	}
+
+	BVH tree = new BVH(primBounds, n, threads);
+
+	int[] ordered = new int[3*n];
+	for (int i = 0; i < n; i++)
+	  for (int c = 0; c < 3; c++)
+	    ordered[3*i+c] = triangles.get(3*tree.primIndices[i] + c);
+
+	triangles  = IntBuffer.wrap(ordered);
+	nodeBounds = DoubleBuffer.wrap(tree.nodeBounds);
+	nodeInfo   = IntBuffer.wrap(tree.nodeInfo);
+
+	if (Trace.verbose) {
+	    System.out.println("Mesh: " + vertexCount() + " vertices, " +
+			       n + " triangles");
+	    tree.printStats(System.out);
+	}
+    }
+
+    //------------------------------------------------------------------------
+
+    public int vertexCount()   { return positions.capacity() / 3; }
+    public int triangleCount() { return triangles.capacity() / 3; }
+
+    /** bounds of the vertices (the root of the hierarchy) */
+    void getObjectBounds(double[] bounds)
+    {
+	if (nodeBounds.capacity() == 0)
+	  Arrays.fill(bounds, 0, 6, 0.0);
+	else
+	  nodeBounds.get(0, bounds, 0, 6);
+    }
+
+    //------------------------------------------------------------------------
+    // Intersection
+
+    /** computes the closest intersection with a triangle of the mesh
+     *  (with all, only the triangle hit before is tested, see Shape.hit())
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	int only = all ? intersection.primitive : -1;
+	if (only >= triangleCount())
+	  only = -1;
+
+	int triangle = traverse(r, intersection, minT,
+				Double.POSITIVE_INFINITY, false, only);
+	if (triangle < 0)
+	  return false;
+
+	intersection.setHitObject(this);
+	intersection.primitive = triangle;
+
+	if (all)
+	  computeFields(r, intersection, triangle);
+
+	return true;
+    }
+
+    /** checks whether the ray crosses any triangle between minT and maxT
+     *  (stopping at the first one found)
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
+    {
+	return traverse(r, scratch, minT, maxT, true, -1) >= 0;
+    }
+
+    /** find the triangle with the smallest t between minT and maxT hit by
+     *  r (or any of them, if any is set), and return its index, or -1 if
+     *  none is hit.  The t value of the hit is left in intersection, and
+     *  the barycentric coordinates of its second and third vertices in
+     *  its u and v.  If only isn't -1, just that triangle is tested
+     *  (without the hierarchy)
+     */
+    private int traverse(Ray r, ISect intersection, double minT, double maxT,
+			 boolean any, int only)
+    {
+	if (nodeInfo.capacity() == 0)
+	  return -1;
+
+	Point3d  o = r.getPoint();
+	Vector3d d = r.getDirection();
+	double invX = 1.0 / d.x, invY = 1.0 / d.y, invZ = 1.0 / d.z;
+
+	// Permute the axes so that z is the largest direction component
+	// (swapping x and y to keep the triangles' winding if it is
+	// negative), and shear them so the ray points along +z
+	double ax = Math.abs(d.x), ay = Math.abs(d.y), az = Math.abs(d.z);
+	int kz = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+	int kx = kz == 2 ? 0 : kz + 1;
+	int ky = kx == 2 ? 0 : kx + 1;
+	double dz = component(d, kz);
+	if (dz < 0.0) {
+	    int k = kx;  kx = ky;  ky = k;
+	}
+	double sx = component(d, kx) / dz;
+	double sy = component(d, ky) / dz;
+	double sz = 1.0 / dz;
+	double ox = component(o, kx), oy = component(o, ky);
+	double oz = component(o, kz);
+
+	FloatBuffer p  = positions;
+	IntBuffer tris = triangles;
+	DoubleBuffer bounds = nodeBounds;
+	IntBuffer info = nodeInfo;
+
+	int[] stack = intersection.stack;
+	if (stack == null)
+	  stack = intersection.stack = new int[BVH.maxDepth + 4];
+
+	int found = -1;
+	int top = 0, first = only, count = 1;
+	if (only < 0)
+	  stack[top++] = 0;
+
+	while (only >= 0 || top > 0) {
+	    if (only < 0) {
+		int node = stack[--top];
+		if (!BVH.hitsBox(bounds, 6*node, o, invX, invY, invZ, 0.0,
+				 maxT))
+		  continue;
+
+		first = info.get(2*node);
+		count = info.get(2*node+1);
+		if (count == 0) {
+		    stack[top++] = first + 1;
+		    stack[top++] = first;
+		    continue;
+		}
+	    }
+
+	    for (int i = first; i < first + count; i++) {
+		int a = 3*tris.get(3*i), b = 3*tris.get(3*i+1);
+		int c = 3*tris.get(3*i+2);
+
+		// Vertices relative to the ray origin, in sheared space
+		double az_ = p.get(a+kz) - oz;
+		double bz_ = p.get(b+kz) - oz;
+		double cz_ = p.get(c+kz) - oz;
+		double Ax = p.get(a+kx) - ox - sx*az_;
+		double Ay = p.get(a+ky) - oy - sy*az_;
+		double Bx = p.get(b+kx) - ox - sx*bz_;
+		double By = p.get(b+ky) - oy - sy*bz_;
+		double Cx = p.get(c+kx) - ox - sx*cz_;
+		double Cy = p.get(c+ky) - oy - sy*cz_;
+
+		// Scaled barycentric coordinates: the ray passes through the
+		// triangle (or one of its edges) if they have the same sign
+		double U = Cx*By - Cy*Bx;
+		double V = Ax*Cy - Ay*Cx;
+		double W = Bx*Ay - By*Ax;
+		if ((U < 0.0 || V < 0.0 || W < 0.0) &&
+		    (U > 0.0 || V > 0.0 || W > 0.0))
+		  continue;
+
+		double det = U + V + W;
+		if (det == 0.0)
+		  continue;
+
+		double t = (U*az_ + V*bz_ + W*cz_) * sz / det;
+		if (!(t > minT && t <= maxT))
+		  continue;
+
+		intersection.t = t;
+		intersection.u = V / det;
+		intersection.v = W / det;
+		if (any)
+		  return i;
+
+		found = i;
+		maxT  = t;
+	    }
+
+	    if (only >= 0)
+	      break;
+	}
+
+	return found;
+    }
+
+    private static double component(Tuple3d t, int k)
+    {
+	return k == 0 ? t.x : (k == 1 ? t.y : t.z);
+    }
+
+    /** fill in the hit point, normal (interpolated from the vertex
+     *  normals, if there are any), texture coordinates (interpolated
+     *  from the vertex ones, or the barycentric coordinates if there are
+     *  none) and surface derivatives of a hit found by traverse()
+     */
+    private void computeFields(Ray r, ISect intersection, int triangle)
+    {
+	double b1 = intersection.u, b2 = intersection.v, b0 = 1.0 - b1 - b2;
+	int a = triangles.get(3*triangle);
+	int b = triangles.get(3*triangle+1);
+	int c = triangles.get(3*triangle+2);
+	FloatBuffer p = positions;
+
+	Point3d hitPoint = intersection.getHitPoint();
+	hitPoint.scaleAdd(intersection.t, r.getDirection(), r.getPoint());
+
+	// Edges, and the geometric normal
+	double ax = p.get(3*a), ay = p.get(3*a+1), az = p.get(3*a+2);
+	double e1x = p.get(3*b) - ax, e1y = p.get(3*b+1) - ay;
+	double e1z = p.get(3*b+2) - az;
+	double e2x = p.get(3*c) - ax, e2y = p.get(3*c+1) - ay;
+	double e2z = p.get(3*c+2) - az;
+
+	Vector3d normal = intersection.getNormal();
+	normal.set(e1y*e2z - e1z*e2y, e1z*e2x - e1x*e2z, e1x*e2y - e1y*e2x);
+
+	if (normals != null) {
+	    FloatBuffer n = normals;
+	    double nx = b0*n.get(3*a)   + b1*n.get(3*b)   + b2*n.get(3*c);
+	    double ny = b0*n.get(3*a+1) + b1*n.get(3*b+1) + b2*n.get(3*c+1);
+	    double nz = b0*n.get(3*a+2) + b1*n.get(3*b+2) + b2*n.get(3*c+2);
+	    if (nx != 0.0 || ny != 0.0 || nz != 0.0)
+	      normal.set(nx, ny, nz);
+	}
+	normal.normalize();
+
+	Vector3d dpdu = intersection.getDpDu(), dpdv = intersection.getDpDv();
+	dpdu.set(e1x, e1y, e1z);
+	dpdv.set(e2x, e2y, e2z);
+
+	if (uvs != null) {
+	    FloatBuffer t = uvs;
+	    double ua = t.get(2*a), ub = t.get(2*b), uc = t.get(2*c);
+	    double va = t.get(2*a+1), vb = t.get(2*b+1), vc = t.get(2*c+1);
+	    intersection.u = b0*ua + b1*ub + b2*uc;
+	    intersection.v = b0*va + b1*vb + b2*vc;
+
+	    // Solve for the derivatives along u and v from the edges
+	    double du1 = ub - ua, du2 = uc - ua;
+	    double dv1 = vb - va, dv2 = vc - va;
+	    double det = du1*dv2 - dv1*du2;
+	    if (det != 0.0) {
+		dpdu.set((dv2*e1x - dv1*e2x) / det, (dv2*e1y - dv1*e2y) / det,
+			 (dv2*e1z - dv1*e2z) / det);
+		dpdv.set((du1*e2x - du2*e1x) / det, (du1*e2y - du2*e1y) / det,
+			 (du1*e2z - du2*e1z) / det);
+	    }
+	} else {
+	    intersection.u = b1;
+	    intersection.v = b2;
+	}
+
+	dpdu.normalize();
+	dpdv.normalize();
+    }
+
+    public void print(PrintStream out)
+    {
+	super.print(out);
+
+	out.println("File     : " + fileName);
+	out.println("Vertices : " + vertexCount());
+	out.println("Triangles: " + triangleCount());
+    }
+}
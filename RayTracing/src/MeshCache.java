@@ -0,0 +1,269 @@
+/* class MeshCache
+ * Binary cache of a mesh read from an OBJ file: its vertex attributes,
+ * triangles and hierarchy, written next to the OBJ file (as
+ * name.obj.cache) the first time the mesh is read.  Later reads map the
+ * cache file and use it in place, so a mesh loads without parsing, building
+ * or copying anything, whatever its size (and processes rendering the same
+ * mesh share the pages of the file).
+ *
+ * File layout (in the byte order of the machine that wrote it):
+ *   int magic, int version, long OBJ file length, long OBJ file time,
+ *   int vertex count, int triangle count, int node count,
+ *   int flags (1: normals, 2: texture coordinates)
+ *   node bounds (6 doubles per node), positions (3 floats per vertex),
+ *   [normals (3 floats per vertex)], [texture coordinates (2 floats per
+ *   vertex)], triangles (3 ints each), node info (2 ints per node)
+ * Each array starts at a multiple of 8 bytes.  The cache is read again
+ * (and rewritten) when the length or time of the OBJ file change.
+ * Meshes with an array over 2GB (the most one mapping can hold) have no
+ * cache, and are read from the OBJ file every time.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+class MeshCache
+{
+    // First bytes of a cache file ("RTMC"), and the format version
+    static final int MAGIC   = 0x52544d43;
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 40;
+
+    // Size of the write buffer
+    static final int BUFFER_SIZE = 1 << 20;
+
+    // Largest array that can be mapped (each array is mapped at once)
+    static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE;
+
+    static final int NORMALS = 1, UVS = 2;
+
+    // Read and write cache files (turned off with Trace -nomeshcache)
+    static boolean enabled = true;
+
+    private FileChannel channel;
+    private ByteBuffer  buffer;
+
+    private MeshCache(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** name of the cache file of an OBJ file */
+    static String cacheName(String objFileName)
+    {
+        return objFileName + ".cache";
+    }
+
+    /** map the cache of the OBJ file objFileName into m, or return false
+     *  if there is no cache or it is out of date
+     */
+    static boolean read(Mesh m, String objFileName) throws IOException
+    {
+        File obj   = new File(objFileName);
+        File cache = new File(cacheName(objFileName));
+        if (!cache.isFile())
+            return false;
+
+        try (FileChannel channel = FileChannel.open(cache.toPath(),
+                                                    StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            while (header.hasRemaining())
+                if (channel.read(header) < 0)
+                    return false;
+            header.flip();
+
+            // (a cache from a machine with the other byte order doesn't
+            // match either)
+            if (header.getInt() != MAGIC || header.getInt() != VERSION ||
+                header.getLong() != obj.length() ||
+                header.getLong() != obj.lastModified())
+                return false;
+
+            int vertices  = header.getInt();
+            int triangles = header.getInt();
+            int nodes     = header.getInt();
+            int flags     = header.getInt();
+
+            long[] size = sizes(vertices, triangles, nodes, flags);
+            if (!mappable(size))
+                return false;
+            long offset = HEADER_SIZE, end = offset;
+            for (long s : size)
+                end += align(s);
+            if (channel.size() != end)
+                return false;
+
+            m.nodeBounds = map(channel, offset, size[0]).asDoubleBuffer();
+            offset += align(size[0]);
+            m.positions  = map(channel, offset, size[1]).asFloatBuffer();
+            offset += align(size[1]);
+            m.normals    = (flags & NORMALS) == 0 ? null :
+                map(channel, offset, size[2]).asFloatBuffer();
+            offset += align(size[2]);
+            m.uvs        = (flags & UVS) == 0 ? null :
+                map(channel, offset, size[3]).asFloatBuffer();
+            offset += align(size[3]);
+            m.triangles  = map(channel, offset, size[4]).asIntBuffer();
+            offset += align(size[4]);
+            m.nodeInfo   = map(channel, offset, size[5]).asIntBuffer();
+        }
+
+        return true;
+    }
+
+    /** write the cache of m, read from the OBJ file objFileName (to a
+     *  temporary file that then replaces the cache, so other processes
+     *  never see part of it), or return false (and remove any old cache)
+     *  if m is too large to be mapped from a cache
+     */
+    static boolean write(Mesh m, String objFileName) throws IOException
+    {
+        File obj   = new File(objFileName);
+        File cache = new File(cacheName(objFileName)).getAbsoluteFile();
+
+        int flags = (m.normals != null ? NORMALS : 0) |
+                    (m.uvs     != null ? UVS     : 0);
+        if (!mappable(sizes(m.vertexCount(), m.triangleCount(),
+                            m.nodeInfo.capacity() / 2, flags))) {
+            cache.delete();
+            return false;
+        }
+
+        File temp  = File.createTempFile(cache.getName(), ".tmp",
+                                         cache.getParentFile());
+
+        try {
+            try (FileChannel channel = FileChannel.open(
+                     temp.toPath(), StandardOpenOption.WRITE)) {
+                MeshCache out = new MeshCache(channel);
+                out.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                out.buffer.order(ByteOrder.nativeOrder());
+
+                int nodes = m.nodeInfo.capacity() / 2;
+
+                out.buffer.putInt(MAGIC);
+                out.buffer.putInt(VERSION);
+                out.buffer.putLong(obj.length());
+                out.buffer.putLong(obj.lastModified());
+                out.buffer.putInt(m.vertexCount());
+                out.buffer.putInt(m.triangleCount());
+                out.buffer.putInt(nodes);
+                out.buffer.putInt(flags);
+
+                out.put(m.nodeBounds);
+                out.put(m.positions);
+                out.put(m.normals);
+                out.put(m.uvs);
+                out.put(m.triangles);
+                out.put(m.nodeInfo);
+                out.flush();
+            }
+
+            Files.move(temp.toPath(), cache.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+
+        return true;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** sizes in bytes of the arrays of a mesh, in file order */
+    private static long[] sizes(int vertices, int triangles, int nodes,
+                                int flags)
+    {
+        long[] size = {
+            48L * nodes,
+            12L * vertices,
+            (flags & NORMALS) == 0 ? 0 : 12L * vertices,
+            (flags & UVS)     == 0 ? 0 :  8L * vertices,
+            12L * triangles,
+            8L * nodes
+        };
+        return size;
+    }
+
+    /** true if no array is too large to be mapped */
+    private static boolean mappable(long[] size)
+    {
+        for (long s : size)
+            if (s > MAX_ARRAY_SIZE)
+                return false;
+        return true;
+    }
+
+    private static long align(long n)
+    {
+        return (n + 7) & ~7L;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset,
+                                  long length) throws IOException
+    {
+        ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                                   length);
+        return b.order(ByteOrder.nativeOrder());
+    }
+
+    // (the arrays are written one value at a time through buffer, each
+    // followed by zeros up to a multiple of 8 bytes)
+
+    private void put(DoubleBuffer b) throws IOException
+    {
+        for (int i = 0; i < b.capacity(); i++) {
+            room(8);
+            buffer.putDouble(b.get(i));
+        }
+    }
+
+    private void put(FloatBuffer b) throws IOException
+    {
+        if (b == null)
+            return;
+        for (int i = 0; i < b.capacity(); i++) {
+            room(4);
+            buffer.putFloat(b.get(i));
+        }
+        if (b.capacity() % 2 != 0)
+            putPadding();
+    }
+
+    private void put(IntBuffer b) throws IOException
+    {
+        for (int i = 0; i < b.capacity(); i++) {
+            room(4);
+            buffer.putInt(b.get(i));
+        }
+        if (b.capacity() % 2 != 0)
+            putPadding();
+    }
+
+    private void putPadding() throws IOException
+    {
+        room(4);
+        buffer.putInt(0);
+    }
+
+    /** make room for n more bytes in buffer */
+    private void room(int n) throws IOException
+    {
+        if (buffer.remaining() < n)
+            flush();
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -4,23 +4,36 @@
  *
  * Doug DeCarlo
  */
+import java.lang.invoke.*;
 import java.lang.reflect.*;
 import java.io.*;
 import java.text.ParseException;
 
 class ParamSpec
 {
+    // The kinds of values the parser reads
+    static final int STRING   = 0;
+    static final int DOUBLE   = 1;
+    static final int VECTOR2D = 2;
+    static final int VECTOR3D = 3;
+    static final int POINT3D  = 4;
+    static final int SPECIAL  = 5;
+
     /** the keyword of the parameter (e.g. "ka")*/
     String keyword;
     
     /** the type of the object (e.g. "java.lang.String" */
     Class type;
+
+    /** which of the kinds above the type is */
+    int kind;
     
-    /** the accessor method */
-    Method accessor;
+    /** the accessor method, as a handle taking (target, value) */
+    MethodHandle accessor;
     
-    /** the reader method (null if a predefined parser type) */
-    Method specialReader;
+    /** the reader method, as a handle taking (target, tokenizer) and
+     *  returning the value (null if a predefined parser type) */
+    MethodHandle specialReader;
     
     //------------------------------------------------------------------------
     public ParamSpec(String newKeyword, Class newType, Method newAccessor,
@@ -29,8 +42,40 @@ class ParamSpec
     {
 	keyword  = newKeyword;
 	type     = newType;
-	accessor = newAccessor;
-	specialReader = newReader;
+
+	if (newReader != null)
+	  kind = SPECIAL;
+	else if (type == String.class)
+	  kind = STRING;
+	else if (type == Double.class)
+	  kind = DOUBLE;
+	else if (type == javax.vecmath.Vector2d.class)
+	  kind = VECTOR2D;
+	else if (type == javax.vecmath.Vector3d.class)
+	  kind = VECTOR3D;
+	else if (type == javax.vecmath.Point3d.class)
+	  kind = POINT3D;
+	else throw new RuntimeException("Type "+ type.getName()+
+					" not supported by parser");
+
+	// Look the methods up once, so reading a value is a direct call
+	MethodHandles.Lookup lookup = MethodHandles.lookup();
+	try {
+	    accessor = lookup.unreflect(newAccessor)
+		.asType(MethodType.methodType(void.class, Object.class,
+					      Object.class));
+
+	    if (newReader != null) {
+		MethodHandle r = lookup.unreflect(newReader);
+		if (Modifier.isStatic(newReader.getModifiers()))
+		  r = MethodHandles.dropArguments(r, 0, Object.class);
+		specialReader = r.asType(MethodType.methodType(
+					     Object.class, Object.class,
+					     StreamTokenizer.class));
+	    }
+	} catch (IllegalAccessException e) {
+	    throw new RuntimeException("Cannot access " + newAccessor, e);
+	}
     }
 
     //------------------------------------------------------------------------
@@ -43,26 +88,36 @@ class ParamSpec
                 InvocationTargetException, IOException,
                 IllegalAccessException, ParseException
     {
-	Object[] parameter = new Object[1];
-	
-	if (specialReader != null) {
-	    parameter[0] = specialReader.invoke(target,
-						new Object[] { tokenizer });
-	} else if ( type.equals(Class.forName("java.lang.String")) )
-	  parameter[0]=Parser.readString(tokenizer);
-	else if ( type.equals(Class.forName("java.lang.Double")) )
-	  parameter[0]=Parser.readDouble(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Vector2d")) )
-	  parameter[0]=Parser.readVector2d(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Vector3d")) )
-	  parameter[0]=Parser.readVector3d(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Point3d"))  )
-	  parameter[0]=Parser.readPoint3d(tokenizer);
-	else throw new RuntimeException("Type "+ type.getName()+
-					" not supported by parser. Line " +
-					tokenizer.lineno());
-	
-	accessor.invoke(target, parameter);
+	try {
+	    Object parameter;
+
+	    switch (kind) {
+	      case SPECIAL:
+		parameter = specialReader.invokeExact(target, tokenizer);
+		break;
+	      case STRING:
+		parameter = Parser.readString(tokenizer);
+		break;
+	      case DOUBLE:
+		parameter = Parser.readDouble(tokenizer);
+		break;
+	      case VECTOR2D:
+		parameter = Parser.readVector2d(tokenizer);
+		break;
+	      case VECTOR3D:
+		parameter = Parser.readVector3d(tokenizer);
+		break;
+	      default:
+		parameter = Parser.readPoint3d(tokenizer);
+		break;
+	    }
+
+	    accessor.invokeExact(target, parameter);
+	} catch (ParseException | IOException | RuntimeException | Error e) {
+	    throw e;
+	} catch (Throwable e) {
+	    throw new InvocationTargetException(e);
+	}
     }
 
     //------------------------------------------------------------------------
@@ -6,43 +6,128 @@
 import java.io.*;
 import java.text.ParseException;
 import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
 import javax.vecmath.*;
 
 /** Implements a parser for the input file format */
 class Parser
 {
-    private static Class[] objectTypes;
-    private static Scene   mainScene;
+    /** reads one kind of object (the constructor from a tokenizer) */
+    interface ObjectReader
+    {
+       RaytracerObject read(StreamTokenizer tokenizer)
+          throws ParseException, IOException, NoSuchMethodException,
+                 ClassNotFoundException, IllegalAccessException,
+                 InvocationTargetException;
+    }
+
+    /** the object types, by keyword */
+    private static final Map<String,ObjectReader> objectTypes =
+       new HashMap<String,ObjectReader>();
+
+    static
+    {
+       // to add the actual types once they're created
+       objectTypes.put(Material.keyword, Material::new);
+       objectTypes.put(Light.keyword,    Light::new);
+       objectTypes.put(Sphere.keyword,   Sphere::new);
+       objectTypes.put(Cylinder.keyword, Cylinder::new);
+       objectTypes.put(Cone.keyword,     Cone::new);
+       objectTypes.put(Box.keyword,      Box::new);
+       objectTypes.put(Mesh.keyword,     Mesh::new);
+       objectTypes.put(Instance.keyword, Instance::new);
+       objectTypes.put(Camera.keyword,   Camera::new);
+    }
+
+    /** the scene being read (null for included files, which are read
+        into ops, to be added to the scene later) */
+    private Scene mainScene;
+
+    /** the statements read so far that have not been applied to the scene
+        yet: objects, SceneCommands and (the Futures of) included files.
+        The main file is applied straight away until it includes a file,
+        since what follows must wait for the file's statements. */
+    private List<Object> ops;
+
+    /** directory of the file being read (included files are relative
+        to it) */
+    private File directory;
+
+    /** threads reading included files (made by the first include) */
+    private ExecutorService pool;
+
+    /** canonical paths of the main file, the files that include the file
+        being read, and the file itself (a file including one of them
+        would never end) */
+    private List<String> chain = new ArrayList<String>();
 
     public Parser(Scene s)
            throws ClassNotFoundException
     {
        mainScene = s;
-       // initialize the array of object types
-       objectTypes = new Class[8];
+    }
 
-       // to add the actual types once they're created
-       objectTypes[0] = Class.forName("Material");
-       objectTypes[1] = Class.forName("Light");
-       objectTypes[2] = Class.forName("Sphere");
-       objectTypes[3] = Class.forName("Cylinder");
-       objectTypes[4] = Class.forName("Cone");
-       objectTypes[5] = Class.forName("Box");
-       objectTypes[6] = Class.forName("Camera");
+    /** parser for a file included by parent */
+    private Parser(Parser parent, String path)
+    {
+       pool  = parent.pool;
+       ops   = new ArrayList<Object>();
+       chain = new ArrayList<String>(parent.chain);
+       chain.add(path);
     }
 
     //------------------------------------------------------------------------
-    /** reads the file indicated by fileName */
+    /** reads the file indicated by fileName (and the files it includes) */
     public void readFile( String fileName )
                 throws ParseException, NoSuchFieldException,
                        InvocationTargetException, ClassNotFoundException,
                        NoSuchMethodException, InstantiationException,
                        IllegalAccessException
     {
+       try
+       {
+          try
+          {
+             chain.add(new File(fileName).getCanonicalPath());
+          }
+          catch (IOException E)
+          {
+             chain.add(new File(fileName).getAbsolutePath());
+          }
+          read(fileName);
+
+          // add everything after the first include, in order
+          if (ops != null) {
+             List<Object> recorded = ops;
+             ops = null;
+             apply(recorded);
+          }
+       }
+       finally
+       {
+          if (pool != null) {
+             pool.shutdownNow();
+             pool = null;
+          }
+       }
+    }
+
+    /** reads a file, applying its statements or recording them in ops */
+    private void read( String fileName )
+                throws ParseException, NoSuchFieldException,
+                       InvocationTargetException, ClassNotFoundException,
+                       NoSuchMethodException, InstantiationException,
+                       IllegalAccessException
+    {
+       directory = new File(fileName).getParentFile();
+
+       RenderEvents.Parse event = new RenderEvents.Parse();
+       event.begin();
 
        try
        {
-          FileReader input = new FileReader(fileName);
+          Reader input = new BufferedReader(new FileReader(fileName));
 
           // create the tokenizer and set its parameters
           StreamTokenizer tokenizer = new StreamTokenizer(input);
@@ -91,7 +176,12 @@ class Parser
           System.err.println("I/O error. Aborting...");
           throw new RuntimeException();
        }
-    }// end of readFile
+
+       if (event.shouldCommit()) {
+          event.fileName = fileName;
+          event.commit();
+       }
+    }// end of read
 
 
     /** reads the current token and, if it is valid, calls the appropriate
@@ -106,46 +196,26 @@ class Parser
        try
        {
           if ( tokenizer.ttype == StreamTokenizer.TT_WORD ) {
-             int i;
-             for ( i=0; i<objectTypes.length; i++)
-                 if (objectTypes[i]!=null){
-                   // check for the value of the "keyword" field
-                   Field keyword = objectTypes[i].getDeclaredField("keyword");
-                   java.lang.String s = new java.lang.String();
-                   s=(String)keyword.get(null);
-
-                   // if the keyword mathches the current token
-                   if (s.compareTo(tokenizer.sval)==0) {
-                      // create a new instance of the class
-                      Class[] list = {Class.forName("java.io.StreamTokenizer")};
-                      Constructor c = objectTypes[i].getConstructor(list);
-
-                      Object[] listOfParameters = {tokenizer};
-                      Object newObject = c.newInstance(listOfParameters);
+             ObjectReader type = objectTypes.get(tokenizer.sval);
 
-                      mainScene.addObject((RaytracerObject)newObject);
+             if (type != null) {
+                // create a new instance of the class
+                RaytracerObject newObject = type.read(tokenizer);
 
-		      //((RaytracerObject)newObject).print(System.out);
+                add(newObject);
 
-                      // exit the loop
-                      break;
-                   }
-                 }
-             if (i>=objectTypes.length) {
+		//newObject.print(System.out);
+             } else if (tokenizer.sval.equals("include")) {
+                include(tokenizer);
+             } else {
 		 // the keyword did not match any object type.
 		 // It must be a scene command
-		 SceneCommand sc = new SceneCommand(tokenizer, mainScene);
+		 add(new SceneCommand(tokenizer));
              }
           }
           else
           throw new ParseException("Unknown object type.", tokenizer.lineno());
        }
-       catch (NoSuchFieldException E)
-       {
-          System.err.print(tokenizer.sval);
-          System.err.println("does not have the \"keyword\" field.");
-          throw E;
-       }
        catch (InvocationTargetException E)
        {
           System.err.print("Could not instanciate class for ");
@@ -154,6 +224,122 @@ class Parser
        }
     }
 
+    //------------------------------------------------------------------------
+    // Included files
+
+    /** reads "include { file }", and starts reading the file on another
+        thread
+    */
+    private void include( StreamTokenizer tokenizer )
+                 throws ParseException, IOException
+    {
+       tokenizer.nextToken();
+       if (tokenizer.ttype != '{')
+          throw new ParseException("No \"{\" found", tokenizer.lineno());
+
+       // (a path with characters other than letters, digits, '.' and '-'
+       // must be in quotes)
+       tokenizer.nextToken();
+       if (tokenizer.ttype != StreamTokenizer.TT_WORD &&
+           tokenizer.ttype != '"')
+          throw new ParseException("File name expected "+tokenizer,
+                                   tokenizer.lineno());
+       File file = new File(tokenizer.sval);
+       if (!file.isAbsolute())
+          file = new File(directory, tokenizer.sval);
+       final String fileName = file.getPath();
+
+       tokenizer.nextToken();
+       if (tokenizer.ttype != '}')
+          throw new ParseException("No \"}\" found", tokenizer.lineno());
+
+       String path = file.getCanonicalPath();
+       int start = chain.indexOf(path);
+       if (start >= 0) {
+          StringBuilder cycle = new StringBuilder();
+          for (String p : chain.subList(start, chain.size()))
+             cycle.append(p).append(" -> ");
+          cycle.append(path);
+          throw new ParseException("Include cycle reading " + fileName +
+                                   ": " + cycle, tokenizer.lineno());
+       }
+
+       if (pool == null)
+          pool = Executors.newFixedThreadPool(mainScene.getThreads());
+
+       // what comes after this must wait for the file
+       if (ops == null)
+          ops = new ArrayList<Object>();
+
+       final Parser included = new Parser(this, path);
+       ops.add(pool.submit(new Callable<List<Object>>() {
+          public List<Object> call() throws Exception
+          {
+             try
+             {
+                included.read(fileName);
+             }
+             catch (ParseException E)
+             {
+                throw new ParseException(fileName + ": " + E.getMessage(),
+                                         E.getErrorOffset());
+             }
+             return included.ops;
+          }
+       }));
+    }
+
+    /** apply a statement to the scene, or keep it for later */
+    private void add( Object op )
+                 throws ParseException
+    {
+       if (ops != null)
+          ops.add(op);
+       else
+          apply(op);
+    }
+
+    /** apply statements (waiting for included files to be read) */
+    private void apply( List<Object> recorded )
+                 throws ParseException
+    {
+       for (Object op : recorded)
+          apply(op);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void apply( Object op )
+                 throws ParseException
+    {
+       if (op instanceof RaytracerObject) {
+          mainScene.addObject((RaytracerObject)op);
+       } else if (op instanceof SceneCommand) {
+          ((SceneCommand)op).apply(mainScene);
+       } else {
+          List<Object> file;
+          try
+          {
+             file = ((Future<List<Object>>)op).get();
+          }
+          catch (InterruptedException E)
+          {
+             throw new RuntimeException(E);
+          }
+          catch (ExecutionException E)
+          {
+             Throwable cause = E.getCause();
+             if (cause instanceof ParseException)
+                throw (ParseException)cause;
+             if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+             if (cause instanceof Error)
+                throw (Error)cause;
+             throw new RuntimeException(cause);
+          }
+          apply(file);
+       }
+    }
+
 
 
     //------------------------------------------------------------------------
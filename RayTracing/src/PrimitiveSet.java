@@ -0,0 +1,389 @@
+/* class PrimitiveSet
+ * Compact storage for many analytic shapes of one class (spheres, boxes,
+ * cylinders or cones), for scenes with too many of them to keep a Shape
+ * each (see Scene.compact).  The set keeps the inverse of each shape's
+ * transformation (its top 3 rows, as floats) and the shape's material in
+ * parallel arrays, in the order of the leaves of a hierarchy over them,
+ * and intersects a shape by transforming the ray with its inverse
+ * straight from the arrays and handing it to a kernel: one shape of the
+ * class per material, with the identity transformation.  That takes 50
+ * bytes per shape, plus the hierarchy.  (The transformation itself isn't
+ * needed: hit points are found along the ray, and the bounds come from
+ * the inverse.)
+ */
+import java.io.*;
+import java.util.*;
+import java.util.function.Supplier;
+import javax.vecmath.*;
+
+class PrimitiveSet extends Shape
+{
+    // Shape classes that can be kept in a set
+    private static final Map<Class<?>,Supplier<Shape>> types =
+	new HashMap<Class<?>,Supplier<Shape>>();
+
+    static
+    {
+	types.put(Sphere.class,   Sphere::new);
+	types.put(Box.class,      Box::new);
+	types.put(Cylinder.class, Cylinder::new);
+	types.put(Cone.class,     Cone::new);
+    }
+
+    // Makes the kernels
+    private Supplier<Shape> type;
+
+    // One shape of the class per material (their hit() sets the hit
+    // object, which gives the hit its material)
+    List<Shape> kernels = new ArrayList<Shape>();
+
+    // Number of shapes
+    int size = 0;
+
+    // Inverse transformation of each shape (rows 0 to 2 of the matrix,
+    // 12 floats per shape), and the index of its kernel
+    float[] inverses  = new float[0];
+    short[] materials = new short[0];
+
+    // Hierarchy over the shapes, as in BVH (but with the bounds rounded
+    // out to floats), except that leaves refer to shapes directly
+    float[] nodeBounds = new float[0];
+    int[]   nodeInfo   = new int[0];
+
+    //------------------------------------------------------------------------
+
+    /** constructor for a set of shapes of the class of s */
+    public PrimitiveSet(Shape s)
+    {
+	type = types.get(s.getClass());
+    }
+
+    /** the kernels count their own tests */
+    boolean holdsShapes()
+    {
+	return true;
+    }
+
+    /** true if s can be kept in a set (it is an analytic shape, without
+     *  children)
+     */
+    static boolean holds(Shape s)
+    {
+	return types.containsKey(s.getClass()) && s.children == null;
+    }
+
+    /** add s (of the class of the set) to the set */
+    public void add(Shape s)
+    {
+	int k = 0;
+	while (k < kernels.size() &&
+	       (kernels.get(k).materialRef != s.materialRef ||
+		!kernels.get(k).materialName.equals(s.materialName)))
+	  k++;
+	if (k == kernels.size()) {
+	    if (k > Short.MAX_VALUE)
+	      throw new IllegalStateException("Too many materials in a set");
+	    Shape kernel = type.get();
+	    kernel.materialName = s.materialName;
+	    kernel.materialRef  = s.materialRef;
+	    kernels.add(kernel);
+	}
+
+	if (size == materials.length) {
+	    int n = Math.max(16, size + (size >> 1));
+	    inverses  = Arrays.copyOf(inverses, 12*n);
+	    materials = Arrays.copyOf(materials, n);
+	}
+
+	Matrix4d m = s.MInverse;
+	float[] a = inverses;
+	int i = 12*size;
+	a[i]    = (float)m.m00;  a[i+1]  = (float)m.m01;
+	a[i+2]  = (float)m.m02;  a[i+3]  = (float)m.m03;
+	a[i+4]  = (float)m.m10;  a[i+5]  = (float)m.m11;
+	a[i+6]  = (float)m.m12;  a[i+7]  = (float)m.m13;
+	a[i+8]  = (float)m.m20;  a[i+9]  = (float)m.m21;
+	a[i+10] = (float)m.m22;  a[i+11] = (float)m.m23;
+	materials[size] = (short)k;
+	size++;
+    }
+
+    /** take the last shape added back out of the set */
+    public void removeLast()
+    {
+	size--;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** trim the arrays, and build the hierarchy over the shapes (using up
+     *  to threads threads) and put them in the order of its leaves
+     */
+    void setup(int threads)
+    {
+	int n = size;
+	if (n == 0) {
+	    nodeBounds = new float[0];
+	    nodeInfo   = new int[0];
+	    return;
+	}
+
+	double[] ob = new double[6];
+	kernels.get(0).getObjectBounds(ob);
+
+	// (the bounds of each shape are those of its object space box
+	// transformed by the inverse of its stored inverse, which is the
+	// shape that is intersected)
+	double[] primBounds = new double[6*n];
+	Matrix4d M = new Matrix4d();
+	for (int i = 0; i < n; i++) {
+	    int b = 6*i, m = 12*i;
+	    float[] a = inverses;
+	    M.m00 = a[m];    M.m01 = a[m+1];  M.m02 = a[m+2];   M.m03 = a[m+3];
+	    M.m10 = a[m+4];  M.m11 = a[m+5];  M.m12 = a[m+6];   M.m13 = a[m+7];
+	    M.m20 = a[m+8];  M.m21 = a[m+9];  M.m22 = a[m+10];  M.m23 = a[m+11];
+	    M.m30 = 0;       M.m31 = 0;       M.m32 = 0;        M.m33 = 1;
+	    M.invert();
+
+	    Shape.transformBounds(ob, M, primBounds, b);
+	    BVH.pad(primBounds, b);
+	}
+
+	BVH tree = new BVH(primBounds, n, threads);
+	primBounds = null;
+
+	float[] orderedInverses  = new float[12*n];
+	short[] orderedMaterials = new short[n];
+	for (int i = 0; i < n; i++) {
+	    int j = tree.primIndices[i];
+	    System.arraycopy(inverses, 12*j, orderedInverses, 12*i, 12);
+	    orderedMaterials[i] = materials[j];
+	}
+	inverses  = orderedInverses;
+	materials = orderedMaterials;
+
+	// (rounding the bounds outwards, so they still hold the shapes)
+	nodeBounds = new float[tree.nodeBounds.length];
+	for (int i = 0; i < nodeBounds.length; i += 6) {
+	    for (int k = 0; k < 3; k++) {
+		double lo = tree.nodeBounds[i+k], hi = tree.nodeBounds[i+k+3];
+		float flo = (float)lo, fhi = (float)hi;
+		nodeBounds[i+k]   = flo > lo ? Math.nextDown(flo) : flo;
+		nodeBounds[i+k+3] = fhi < hi ? Math.nextUp(fhi)   : fhi;
+	    }
+	}
+	nodeInfo = tree.nodeInfo;
+
+	if (Trace.verbose) {
+	    System.out.println("Set of " + n + " " +
+			       kernels.get(0).getClass().getName() + "s, " +
+			       kernels.size() + " materials");
+	    tree.printStats(System.out);
+	}
+    }
+
+    /** bounds of the shapes (the root of the hierarchy) */
+    void getObjectBounds(double[] bounds)
+    {
+	for (int k = 0; k < 6; k++)
+	  bounds[k] = nodeBounds.length == 0 ? 0.0 : nodeBounds[k];
+    }
+
+    //------------------------------------------------------------------------
+    // Intersection
+
+    /** finds the closest hit with a shape of the set (whose kernel
+     *  becomes the hit object, so its material is used); with all, only
+     *  the shape hit before is tested again (see Shape.hit())
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	Ray primRay = intersection.getNested().objRay;
+
+	int i = all ? intersection.primitive : -1;
+	if (i < 0 || i >= size)
+	  i = traverse(r, primRay, intersection, minT);
+	if (i < 0)
+	  return false;
+
+	if (all) {
+	    double t = intersection.t;
+	    toShapeSpace(r, primRay, i);
+	    if (!kernels.get(materials[i]).hit(primRay, intersection, true,
+					       minT))
+	      return false;
+
+	    // into the space of the set: the hit point along the ray, and
+	    // the normal by the inverse transpose (the surface derivatives
+	    // stay in the space of the shape, as for shapes of their own)
+	    int m = 12*i;
+	    float[] a = inverses;
+	    Vector3d n = intersection.getNormal();
+	    intersection.t = t;
+	    intersection.getHitPoint().scaleAdd(t, r.getDirection(),
+						r.getPoint());
+	    n.normalize();
+	    n.set(a[m]*n.x   + a[m+4]*n.y + a[m+8]*n.z,
+		  a[m+1]*n.x + a[m+5]*n.y + a[m+9]*n.z,
+		  a[m+2]*n.x + a[m+6]*n.y + a[m+10]*n.z);
+	}
+
+	intersection.setHitObject(kernels.get(materials[i]));
+	intersection.primitive = i;
+	return true;
+    }
+
+    /** find the shape with the smallest t above minT hit by r, and
+     *  return its index (or -1 if none is hit), with its t in
+     *  intersection (counting the work as BVH does)
+     */
+    private int traverse(Ray r, Ray primRay, ISect intersection,
+			 double minT)
+    {
+	if (nodeInfo.length == 0)
+	  return -1;
+
+	RenderStats stats = intersection.getNested().stats;
+	long[] tests = stats.tests, hits = stats.hits;
+	int visits = 0;
+
+	Point3d  o = r.getPoint();
+	Vector3d d = r.getDirection();
+	double invX = 1.0 / d.x, invY = 1.0 / d.y, invZ = 1.0 / d.z;
+
+	int[] stack = stack(intersection);
+	int found = -1;
+	double closestT = Double.POSITIVE_INFINITY;
+	int top = 0;
+	stack[top++] = 0;
+
+	while (top > 0) {
+	    int node = stack[--top];
+	    visits++;
+	    if (!BVH.hitsBox(nodeBounds, 6*node, o, invX, invY, invZ, 0.0,
+			     closestT))
+	      continue;
+
+	    int first = nodeInfo[2*node], count = nodeInfo[2*node+1];
+	    if (count == 0) {
+		stack[top++] = first + 1;
+		stack[top++] = first;
+		continue;
+	    }
+
+	    for (int i = first; i < first + count; i++) {
+		Shape kernel = kernels.get(materials[i]);
+		toShapeSpace(r, primRay, i);
+		tests[kernel.kind]++;
+		if (kernel.hit(primRay, intersection, false, minT)) {
+		    hits[kernel.kind]++;
+		    if (intersection.t < closestT) {
+			found    = i;
+			closestT = intersection.t;
+		    }
+		}
+	    }
+	}
+
+	stats.nodeVisits += visits;
+	intersection.t = closestT;
+	return found;
+    }
+
+    /** checks whether any shape of the set is in the way, filtering the
+     *  light by all of those that are (see transmittance())
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
+    {
+	if (nodeInfo.length == 0)
+	  return false;
+
+	RenderContext ctx = scratch.getNested();
+	Ray primRay = ctx.objRay;
+	Vector3d tint = ctx.tint;
+	tint.set(1.0, 1.0, 1.0);
+
+	long[] tests = ctx.stats.occlusionTests;
+	long[] hits  = ctx.stats.occlusionHits;
+	int visits = 0;
+
+	Point3d  o = r.getPoint();
+	Vector3d d = r.getDirection();
+	double invX = 1.0 / d.x, invY = 1.0 / d.y, invZ = 1.0 / d.z;
+
+	int[] stack = stack(scratch);
+	int top = 0;
+	stack[top++] = 0;
+
+	while (top > 0) {
+	    int node = stack[--top];
+	    visits++;
+	    if (!BVH.hitsBox(nodeBounds, 6*node, o, invX, invY, invZ, 0.0,
+			     maxT))
+	      continue;
+
+	    int first = nodeInfo[2*node], count = nodeInfo[2*node+1];
+	    if (count == 0) {
+		stack[top++] = first + 1;
+		stack[top++] = first;
+		continue;
+	    }
+
+	    for (int i = first; i < first + count; i++) {
+		Shape kernel = kernels.get(materials[i]);
+		toShapeSpace(r, primRay, i);
+		tests[kernel.kind]++;
+		if (!kernel.occludes(primRay, scratch, minT, maxT))
+		  continue;
+		hits[kernel.kind]++;
+
+		// (stopping only once no light at all gets through, as in
+		// Instance)
+		if (Scene.transmit(kernel, scratch, tint, Double.MIN_VALUE)) {
+		    ctx.stats.nodeVisits += visits;
+		    return true;
+		}
+	    }
+	}
+
+	ctx.stats.nodeVisits += visits;
+	return tint.x != 1.0 || tint.y != 1.0 || tint.z != 1.0;
+    }
+
+    /** the light let through by the shapes found by occludes() */
+    Vector3d transmittance(ISect scratch)
+    {
+	return scratch.getNested().tint;
+    }
+
+    /** transform r into the object space of shape i, into primRay */
+    private void toShapeSpace(Ray r, Ray primRay, int i)
+    {
+	int m = 12*i;
+	float[] a = inverses;
+	Point3d  o = r.getPoint(),    po = primRay.getPoint();
+	Vector3d d = r.getDirection(), pd = primRay.getDirection();
+
+	po.set(a[m]*o.x + a[m+1]*o.y + a[m+2]*o.z + a[m+3],
+	       a[m+4]*o.x + a[m+5]*o.y + a[m+6]*o.z + a[m+7],
+	       a[m+8]*o.x + a[m+9]*o.y + a[m+10]*o.z + a[m+11]);
+	pd.set(a[m]*d.x + a[m+1]*d.y + a[m+2]*d.z,
+	       a[m+4]*d.x + a[m+5]*d.y + a[m+6]*d.z,
+	       a[m+8]*d.x + a[m+9]*d.y + a[m+10]*d.z);
+    }
+
+    private static int[] stack(ISect intersection)
+    {
+	if (intersection.stack == null)
+	  intersection.stack = new int[BVH.maxDepth + 4];
+	return intersection.stack;
+    }
+
+    public void print(PrintStream out)
+    {
+	super.print(out);
+
+	out.println("Shapes   : " + size);
+	out.println("Materials: " + kernels.size());
+    }
+}
@@ -0,0 +1,48 @@
+/* class Prototype
+ * Shapes defined once, in a space of their own, that instances (see
+ * Instance) place in the scene any number of times.  The prototype has
+ * its own hierarchy over its shapes, shared by all of its instances, so
+ * the memory used grows with the shapes of the prototypes rather than with
+ * the number of instances.
+ */
+import java.util.*;
+
+class Prototype
+{
+    // Name instances refer to the prototype by
+    String name;
+
+    // The shapes, in the space of the prototype
+    List<Shape> objects = new ArrayList<Shape>();
+
+    // Hierarchy over the shapes (null until setup(), or if there are none)
+    BVH bvh = null;
+
+    // Bounds of the shapes (as in BVH.nodeBounds)
+    double[] bounds = new double[6];
+
+    //------------------------------------------------------------------------
+
+    public Prototype(String name)
+    {
+        this.name = name;
+    }
+
+    /** build the hierarchy over the shapes (once they have their
+     *  materials), using up to threads threads
+     */
+    public void setup(int threads)
+    {
+        if (objects.isEmpty())
+            return;
+
+        bvh = new BVH(objects, threads);
+        System.arraycopy(bvh.nodeBounds, 0, bounds, 0, 6);
+
+        if (Trace.verbose) {
+            System.out.println("Prototype " + name + ": " + objects.size() +
+                               " shapes");
+            bvh.printStats(System.out);
+        }
+    }
+}
@@ -4,17 +4,25 @@
  * Doug DeCarlo
  */
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import javax.vecmath.*;
 
 class RGBImage
 {
-    Vector3d[][] data;
+    // Pixel values (R, G, B) stored row by row, top row first (the order
+    // they are written to a file), so pixel (i,j) starts at index(i,j)
+    float[] data;
     int width  = 0;
     int height = 0;
     int depth  = 3;
     // width * height * depth
     int length = 0;
 
+    // Gamma correction applied when the image is written (1 for none);
+    // pixel values are stored as they are set
+    double gamma = 1.0;
+
     /** Constructors */
     public RGBImage(String fileName)
            throws IOException, FileNotFoundException, SecurityException
@@ -33,10 +41,11 @@ class RGBImage
        // length of the file to be written
        length = width * height * depth;
 
-       data = new Vector3d[width][height];
-       for (int i=0; i < data.length; i++)
-           for (int j=0; j < data[i].length; j++)
-               data[i][j] = new Vector3d();
+       data = new float[length];
+
+       // Gamma convert rendered images to match display (for better
+       // contrast)
+       gamma = 2.4;
     }
 
     //-----------------------------------------------------------------------
@@ -44,31 +53,57 @@ class RGBImage
     public int getWidth()  { return width; }
     public int getHeight() { return height; }
 
-    /** Get value of pixel (i,j) */
-    public Vector3d getPixel(int i, int j)
+    public double getGamma()            { return gamma; }
+    public void   setGamma(double g)    { gamma = g; }
+
+    /** Index in data of pixel (i,j) (row j = 0 is the bottom row) */
+    public int index(int i, int j)
+    {
+	return ((height-j-1) * width + i) * depth;
+    }
+
+    /** Get component c (0 = R, 1 = G, 2 = B) of pixel (i,j) */
+    public float get(int i, int j, int c)
+    {
+	return data[index(i,j) + c];
+    }
+
+    /** Get value of pixel (i,j) into p (and return it) */
+    public Vector3d getPixel(int i, int j, Vector3d p)
     {
-	return data[i][j];
+	int k = index(i,j);
+	p.set(data[k], data[k+1], data[k+2]);
+	return p;
     }
 
     /** Set value of pixel (i,j) */
     public void setPixel(int i, int j, Vector3d newVal)
     {
-	data[i][j].set(newVal);
+	setPixel(i, j, newVal.x, newVal.y, newVal.z);
+    }
 
-	adjustColor(data[i][j]);
+    public void setPixel(int i, int j, double r, double g, double b)
+    {
+	int k = index(i,j);
+	data[k]   = (float)r;
+	data[k+1] = (float)g;
+	data[k+2] = (float)b;
     }
 
-    /** Make sure pixel value is in correct range */
-    private void adjustColor(Vector3d color)
+    /** Convert value to a byte for display: gamma correct it, then clamp
+     *  it to [0,1]
+     */
+    private static byte adjustColor(float value, double invGamma)
     {
-	// Gamma convert to match display (for better contrast)
-	double gamma = 2.4;
-	color.x = Math.pow(color.x, 1.0/gamma);
-	color.y = Math.pow(color.y, 1.0/gamma);
-	color.z = Math.pow(color.z, 1.0/gamma);
+	double x = invGamma == 1.0 ? value : Math.pow(value, invGamma);
 
 	// clamp RGB values to [0,1]
-	color.clamp(0.0, 1.0);
+	if (x > 1.0)
+	  x = 1.0;
+	else if (x < 0.0)
+	  x = 0.0;
+
+	return (byte)(255*x);
     }
 
     /** Determine the pixel value at a location of the images by bi-linear
@@ -76,19 +111,32 @@ class RGBImage
      * (u and v are both in the range [0,1])
      */
     public Vector3d getSubPixel(double u, double v)
+    {
+        return getSubPixel(u, v, new Vector3d());
+    }
+
+    /** same as getSubPixel(u, v), but stores the result in p (and
+     *  returns it)
+     */
+    public Vector3d getSubPixel(double u, double v, Vector3d p)
     {
         double x = u * (width-1), y = v * (height-1);
         
         int x0 = (int)x, y0 = (int)y;
         double alphaX = x - x0, alphaY = y - y0;
-	
-        Vector3d p = new Vector3d(), p0 = new Vector3d();
 
+        // (on the last row or column, the missing neighbors have weight 0)
+        int x1 = x0+1 < width ? x0+1 : x0, y1 = y0+1 < height ? y0+1 : y0;
+        int k00 = index(x0, y0), k10 = index(x1, y0);
+        int k01 = index(x0, y1), k11 = index(x1, y1);
+
+        double w00 = (1-alphaX) * (1-alphaY), w10 = (alphaX) * (1-alphaY);
+        double w01 = (1-alphaX) *   (alphaY), w11 = (alphaX) *   (alphaY);
+	
         // Add up weighted average of 4 neighbors
-        p0.scale((1-alphaX) * (1-alphaY), getPixel(x0  , y0));     p.add(p0);
-        p0.scale(  (alphaX) * (1-alphaY), getPixel(x0+1, y0));     p.add(p0);
-        p0.scale((1-alphaX) *   (alphaY), getPixel(x0  , y0+1));   p.add(p0);
-        p0.scale(  (alphaX) *   (alphaY), getPixel(x0+1, y0+1));   p.add(p0);
+        p.x = w00*data[k00]   + w10*data[k10]   + w01*data[k01]   + w11*data[k11];
+        p.y = w00*data[k00+1] + w10*data[k10+1] + w01*data[k01+1] + w11*data[k11+1];
+        p.z = w00*data[k00+2] + w10*data[k10+2] + w01*data[k01+2] + w11*data[k11+2];
         
         return p;
     }
@@ -98,70 +146,54 @@ class RGBImage
 
     /** Read the data using PPM format (text or binary) */
     public void read(String filename)
+	throws IOException
     {
-	try {
-	    FileInputStream is = new FileInputStream(filename);
-	    LineInputStream in = new LineInputStream(is);
+	// (buffered: the header is read one byte at a time)
+	InputStream is = new BufferedInputStream(
+			     new FileInputStream(filename), 1 << 16);
+	LineInputStream in = new LineInputStream(is);
 	    
-	    // read header
-	    boolean raw;
+	// read header
+	boolean raw;
 	    
-	    String magic = getsPPM(in);
-	    if (magic.equals("P6"))
-	      raw = true;
-	    else if (magic.equals("P3"))
-	      raw = false;
-	    else 
-	      throw new IOException("Not a PPM file");
+	String magic = getsPPM(in);
+	if (magic.equals("P6"))
+	  raw = true;
+	else if (magic.equals("P3"))
+	  raw = false;
+	else 
+	  throw new IOException("Not a PPM file");
 	    
-	    depth = 3;
+	depth = 3;
 	    
-	    String size = getsPPM(in);
-	    width = Integer.parseInt(size.substring(0,size.indexOf(' ')));
-	    height = Integer.parseInt(size.substring(size.indexOf(' ')+1));
+	String size = getsPPM(in);
+	width = Integer.parseInt(size.substring(0,size.indexOf(' ')));
+	height = Integer.parseInt(size.substring(size.indexOf(' ')+1));
 	    
-	    data = new Vector3d[width][height];
+	length = width * height * depth;
+	data = new float[length];
+	gamma = 1.0;
 	    
-	    String max = getsPPM(in);
-	    if (Integer.parseInt(max) != 255) {
-		throw new IOException("Not a PPM file");
-	    }
+	String max = getsPPM(in);
+	if (Integer.parseInt(max) != 255) {
+	    throw new IOException("Not a PPM file");
+	}
 	    
-	    if (raw) {
-		// read raw data
-		byte brow[] = new byte[width*3];
-		for (int i=0; i < height; i++) {
-		    if (in.readdata(brow) != width*3)
-		      throw new IOException("File read error");
-		    for (int j=0, k=0; j < width*3; j += 3) {
-			int r = brow[j], g = brow[j+1], b = brow[j+2];
-			r = r < 0 ? r+256 : r;
-			g = g < 0 ? g+256 : g;
-			b = b < 0 ? b+256 : b;
-
-			data[k++][height-i-1] = 
-			  new Vector3d(r/255.0, g/255.0, b/255.0);
-		    }
-		}
-	    } else {
-		// read ascii data
-		for (int i=0; i < height; i++) {
-		    for(int j=0; j < width; j++) {
-			int r = Integer.parseInt(in.getw());
-			int g = Integer.parseInt(in.getw());
-			int b = Integer.parseInt(in.getw());
-
-			data[j][height-i-1] = 
-			  new Vector3d(r/255.0, g/255.0, b/255.0);
-		    }
-		}
+	if (raw) {
+	    // read raw data
+	    byte brow[] = new byte[width*3];
+	    for (int i=0, k=0; i < height; i++) {
+		if (in.readdata(brow) != width*3)
+		  throw new IOException("File read error");
+		for (int j=0; j < width*3; j++)
+		    data[k++] = (float)((brow[j] & 0xff) / 255.0);
 	    }
-	    in.close();
-
-	} catch (IOException e) {
-	    System.out.println(e);
-	    System.exit(-1);
+	} else {
+	    // read ascii data
+	    for (int k=0; k < length; k++)
+		data[k] = (float)(Integer.parseInt(in.getw()) / 255.0);
 	}
+	in.close();
     }
 
     // Read one line from PPM format image data, ignoring comments
@@ -179,40 +211,81 @@ class RGBImage
 	return line;
     }
 
-    /** Write the data using PPM format (binary) */
+    /** Write the data using PPM format (binary), gamma correcting and
+     *  clamping it one row at a time
+     */
     public void write(String filename)
+    {
+	RenderEvents.ImageWrite event = new RenderEvents.ImageWrite();
+	event.begin();
+
+	try {
+	    FileChannel channel = new FileOutputStream(filename).getChannel();
+
+	    try {
+		// Write file header, then image contents
+		long headerLength = writeHeader(channel, width, height);
+		writeRows(channel, headerLength);
+	    } finally {
+		channel.close();
+	    }
+	} catch (IOException e) {
+	    System.out.println(e);
+	    System.exit(-1);
+	}
+
+	if (event.shouldCommit()) {
+	    event.fileName = filename;
+	    event.width    = width;
+	    event.rows     = height;
+	    event.commit();
+	}
+    }
+
+    /** Write the header of a width X height PPM file at the start of
+     *  channel, and return its length
+     */
+    public static long writeHeader(FileChannel channel, int width, int height)
+	throws IOException
     {
 	String header = new String("P6" + '\n' +
 				   width + " " + height + '\n' +
 				   "255" + '\n');
-	// Space for image data
-	byte[] dataOut = new byte[length];
-	
-	try {
-	    FileOutputStream stream = new FileOutputStream(filename);
+	ByteBuffer buffer = ByteBuffer.wrap(header.getBytes());
 
-	    // Write file header
-	    stream.write(header.getBytes());
-
-	    // Collect image bytes
-	    int pos = 0;
-	    for (int j=0; j < data[0].length; j++) {
-		for (int i=0; i < data.length; i++) {
-		    Vector3d pixel = getPixel(i,height-j-1);
+	writeFully(channel, buffer, 0);
+	return buffer.capacity();
+    }
 
-		    dataOut[pos++] = (byte)(255*pixel.x);
-		    dataOut[pos++] = (byte)(255*pixel.y);
-		    dataOut[pos++] = (byte)(255*pixel.z);
-		}
-	    }
+    /** Write the rows of this image (converted as in write()) to channel
+     *  at position, which lets an image be written in horizontal strips
+     *  (a strip is at headerLength + first row * width * 3 in the file)
+     */
+    public void writeRows(FileChannel channel, long position)
+	throws IOException
+    {
+	// Space for one row of image data
+	int rowLength = width * depth;
+	ByteBuffer buffer = ByteBuffer.allocate(rowLength);
+	byte[] dataOut = buffer.array();
+	double invGamma = 1.0/gamma;
 
-	    // Write image contents
-	    stream.write(dataOut, 0, dataOut.length);
+	// (data is in file order)
+	for (int row=0, k=0; row < height; row++) {
+	    for (int pos=0; pos < rowLength; pos++)
+		dataOut[pos] = adjustColor(data[k++], invGamma);
 
-	    stream.close();
-	} catch (IOException e) {
-	    System.out.println(e);
-	    System.exit(-1);
+	    buffer.clear();
+	    writeFully(channel, buffer, position);
+	    position += rowLength;
 	}
     }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+				   long position)
+	throws IOException
+    {
+	while (buffer.hasRemaining())
+	    position += channel.write(buffer, position);
+    }
 }
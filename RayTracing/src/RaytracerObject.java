@@ -9,23 +9,48 @@ import javax.vecmath.*;
 import java.text.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 abstract class RaytracerObject
 {
    /** the name of the object. Default value : an empty string */
    String name="";
 
-   /** parameters of the object */
-   Vector<ParamSpec> paramSpecs;
+   /** parameters of the object, by keyword (shared by all objects of a
+       class, see specTables) */
+   Map<String,ParamSpec> paramSpecs;
 
-   /** this constructor enforces the creation of an object from a file */
+   /** true while the constructors are filling in paramSpecs, for the
+       first object of its class */
+   private boolean newSpecs;
+
+   /** the parameters of each class, built by the constructors of the first
+       object of the class that is read, and reused after that */
+   private static Map<Class<?>,Map<String,ParamSpec>> specTables =
+      new ConcurrentHashMap<Class<?>,Map<String,ParamSpec>>();
+
+   /** constructor for objects made in code rather than read from a
+       file (they have no parameters) */
+   protected RaytracerObject()
+   {
+   }
+
+   /** this constructor enforces the creation of an object from a file
+       (objects made from default values pass a null tokenizer, and have
+       no parameters) */
    protected RaytracerObject(StreamTokenizer tokenizer)
              throws NoSuchMethodException, SecurityException,
                     ClassNotFoundException
    {
-      // nothing to do here
-      paramSpecs = new Vector<ParamSpec>();
-      addSpec("name", "setName", "java.lang.String");
+      if (tokenizer == null)
+         return;
+
+      paramSpecs = specTables.get(getClass());
+      if (paramSpecs == null) {
+         paramSpecs = new HashMap<String,ParamSpec>();
+         newSpecs   = true;
+         addSpec("name", "setName", "java.lang.String");
+      }
    }
    //------------------------------------------------------------------------
    // print to a stream
@@ -39,6 +64,12 @@ abstract class RaytracerObject
                throws ParseException,  IOException, InvocationTargetException,
                ClassNotFoundException, IllegalAccessException
    {
+      // the constructors have added all the parameters by now
+      if (newSpecs) {
+         specTables.putIfAbsent(getClass(), paramSpecs);
+         newSpecs = false;
+      }
+
       // read the open brace
       tokenizer.nextToken();
       if ( tokenizer.ttype!='{' )
@@ -48,17 +79,12 @@ abstract class RaytracerObject
       boolean Stop = false;
       while (!Stop) {
          if (tokenizer.nextToken()==StreamTokenizer.TT_WORD) {
-            String paramName = tokenizer.sval;
-            // search for the parameter in the list
-            int i;
-            for (i=0; i<paramSpecs.size(); i++)
-                if ( ((ParamSpec)paramSpecs.elementAt(i)).is(paramName))
-                   break;
-
-            if (i<paramSpecs.size()) {
+            // look up the parameter (unknown names are skipped)
+            ParamSpec temp = paramSpecs.get(tokenizer.sval);
+
+            if (temp != null) {
                // skip the "="
                tokenizer.nextToken();
-               ParamSpec temp = (ParamSpec)(paramSpecs.elementAt(i));
                temp.read(tokenizer, this);
             }
          }
@@ -90,17 +116,20 @@ abstract class RaytracerObject
       }
    }
 
-   /** creates a new ParamSpec and adds it to the list of specs */
+   /** creates a new ParamSpec and adds it to the list of specs (only for
+       the first object of a class; the others share its specs) */
    protected void addSpec( String kWord, String accessorName, String paramType)
              throws NoSuchMethodException, SecurityException,
                     ClassNotFoundException
    {
+      if (!newSpecs)
+         return;
+
       Class[] c = new Class[1];
       c[0]      = Class.forName(paramType);
       Method m  = getAccessor(accessorName, c);
 
-      ParamSpec nameSpec = new ParamSpec(kWord, c[0], m, null);
-      paramSpecs.addElement(nameSpec);
+      paramSpecs.putIfAbsent(kWord, new ParamSpec(kWord, c[0], m, null));
    }
 
    /** creates a new ParamSpec and adds it to the list of specs */
@@ -109,6 +138,9 @@ abstract class RaytracerObject
              throws NoSuchMethodException, SecurityException,
                     ClassNotFoundException
    {
+      if (!newSpecs)
+         return;
+
       Class[] c  = new Class[1];
       c[0]       = Class.forName("java.util.Vector");
       Method m   = getAccessor(accessorName, c);
@@ -117,8 +149,7 @@ abstract class RaytracerObject
       ct[0]      = Class.forName("java.io.StreamTokenizer");
       Method r   = getAccessor(readerName, ct);
       
-      ParamSpec nameSpec = new ParamSpec(kWord, c[0], m, r);
-      paramSpecs.addElement(nameSpec);
+      paramSpecs.putIfAbsent(kWord, new ParamSpec(kWord, c[0], m, r));
    }
 
    //------------------------------------------------------------------------
@@ -0,0 +1,67 @@
+/* class RenderContext
+ * Scratch space for tracing rays on one rendering thread, so that the
+ * objects needed for each ray are reused instead of allocated
+ */
+import javax.vecmath.*;
+
+class RenderContext
+{
+    // Primary ray, the ray in the space of the object being tested, and
+    // the shadow feeler ray
+    Ray ray       = new Ray();
+    Ray objRay    = new Ray();
+    Ray shadowRay = new Ray();
+
+    // Intersection of a ray (and scratch space for shadow ray tests,
+    // which must not overwrite it)
+    ISect isect       = new ISect();
+    ISect shadowISect = new ISect();
+
+    // Primary ray directions of a tile (see Camera.pixelRays())
+    double[] rayDirections = new double[0];
+
+    // BVH traversal stack
+    int[] stack = new int[BVH.maxDepth + 4];
+
+    // Pixel color, and light let through to the hit point
+    Vector3d color = new Vector3d();
+    Vector3d tint  = new Vector3d();
+
+    // Counters of this thread's work (shared with the nested contexts of
+    // its ISects)
+    RenderStats stats;
+
+    // Temporaries for the lighting computation (see Light.compute())
+    Vector3d l_vec     = new Vector3d();
+    Vector3d n_vec     = new Vector3d();
+    Vector3d r_vec     = new Vector3d();
+    Vector3d v_vec     = new Vector3d();
+    Vector3d atten_vec = new Vector3d();
+    Vector3d ambient   = new Vector3d();
+    Vector3d diffuse   = new Vector3d();
+    Vector3d specular  = new Vector3d();
+    Vector3d texColor  = new Vector3d();
+
+    //------------------------------------------------------------------------
+
+    RenderContext()
+    {
+        this(new RenderStats());
+    }
+
+    /** make a context that counts into stats */
+    RenderContext(RenderStats stats)
+    {
+        this.stats = stats;
+        isect.stats       = stats;
+        shadowISect.stats = stats;
+    }
+
+    /** get rayDirections with room for n directions (it only grows) */
+    double[] rayDirections(int n)
+    {
+        if (rayDirections.length < 3*n)
+          rayDirections = new double[3*n];
+        return rayDirections;
+    }
+}
@@ -0,0 +1,113 @@
+/* class RenderEvents
+ * Java Flight Recorder events for the phases of a render (parsing, setup,
+ * texture loading, BVH building, each tile, and writing the image), so
+ * recordings can be lined up with what the renderer was doing
+ *
+ * The events are disabled by default and cost (next to) nothing unless a
+ * recording enables them, for instance with
+ *   java -XX:StartFlightRecording=settings=profile,filename=trace.jfr
+ *        ... Trace ...
+ * and jfr configure / a .jfc file that sets raytracing.*#enabled=true
+ */
+import jdk.jfr.*;
+
+class RenderEvents
+{
+    @Name("raytracing.Parse")
+    @Label("Parse Scene")
+    @Category("Ray Tracing")
+    @Enabled(false)
+    static class Parse extends Event
+    {
+        @Label("File")
+        String fileName;
+    }
+
+    @Name("raytracing.Setup")
+    @Label("Set Up Scene")
+    @Category("Ray Tracing")
+    @Enabled(false)
+    static class Setup extends Event
+    {
+        @Label("Objects")
+        int objects;
+
+        @Label("Materials")
+        int materials;
+    }
+
+    @Name("raytracing.TextureLoad")
+    @Label("Load Texture")
+    @Category("Ray Tracing")
+    @Enabled(false)
+    static class TextureLoad extends Event
+    {
+        @Label("File")
+        String fileName;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+    }
+
+    @Name("raytracing.BVHBuild")
+    @Label("Build BVH")
+    @Category("Ray Tracing")
+    @Enabled(false)
+    static class BVHBuild extends Event
+    {
+        @Label("Primitives")
+        int primitives;
+
+        @Label("Nodes")
+        int nodes;
+    }
+
+    @Name("raytracing.Tile")
+    @Label("Render Tile")
+    @Category("Ray Tracing")
+    @Enabled(false)
+    static class Tile extends Event
+    {
+        @Label("X0")
+        int x0;
+
+        @Label("Y0")
+        int y0;
+
+        @Label("X1")
+        int x1;
+
+        @Label("Y1")
+        int y1;
+
+        @Label("Primary Rays")
+        long primaryRays;
+
+        @Label("Shadow Rays")
+        long shadowRays;
+
+        @Label("Secondary Rays")
+        long secondaryRays;
+    }
+
+    @Name("raytracing.ImageWrite")
+    @Label("Write Image")
+    @Category("Ray Tracing")
+    @Enabled(false)
+    static class ImageWrite extends Event
+    {
+        @Label("File")
+        String fileName;
+
+        @Label("Width")
+        int width;
+
+        @Label("Rows")
+        @Description("Number of rows written (all of them, or one strip " +
+                     "when streaming)")
+        int rows;
+    }
+}
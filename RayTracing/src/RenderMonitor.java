@@ -0,0 +1,77 @@
+/* class RenderMonitor
+ * Exposes the progress and counters of a scene's render as a JMX MXBean
+ * (under the name RayTracing:type=RenderMonitor), so long renders can be
+ * watched with jconsole or similar tools
+ */
+import java.lang.management.*;
+import java.util.*;
+import javax.management.*;
+
+class RenderMonitor implements RenderMonitorMXBean
+{
+    static final String objectName = "RayTracing:type=RenderMonitor";
+
+    Scene scene;
+
+    public RenderMonitor(Scene scene)
+    {
+        this.scene = scene;
+    }
+
+    /** register a monitor for scene with the platform MBean server */
+    static void register(Scene scene) throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(new RenderMonitor(scene), new ObjectName(objectName));
+    }
+
+    //------------------------------------------------------------------------
+
+    public long getTotalPixels() { return scene.totalPixels; }
+    public long getPixelsDone()  { return scene.pixelsDone.get(); }
+
+    public double getPercentDone()
+    {
+        long total = scene.totalPixels;
+        return total > 0 ? 100.0 * scene.pixelsDone.get() / total : 0.0;
+    }
+
+    public double getElapsedSeconds()
+    {
+        long start = scene.renderStart;
+        return start != 0 ? (System.nanoTime() - start) / 1e9 : 0.0;
+    }
+
+    // (the counters are added up over the rendering threads each time
+    // they are read)
+    public long getPrimaryRays()   { return scene.getStats().primaryRays; }
+    public long getShadowRays()    { return scene.getStats().shadowRays; }
+    public long getSecondaryRays() { return scene.getStats().secondaryRays; }
+    public long getNodeVisits()    { return scene.getStats().nodeVisits; }
+
+    public double getRaysPerSecond()
+    {
+        double seconds = getElapsedSeconds();
+        return seconds > 0 ? scene.getStats().getRays() / seconds : 0.0;
+    }
+
+    public Map<String, Long> getIntersectionTests()
+    {
+        RenderStats stats = scene.getStats();
+        return perKind(stats.tests, stats.occlusionTests);
+    }
+
+    public Map<String, Long> getIntersectionHits()
+    {
+        RenderStats stats = scene.getStats();
+        return perKind(stats.hits, stats.occlusionHits);
+    }
+
+    private static Map<String, Long> perKind(long[] a, long[] b)
+    {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (int k = 0; k < a.length; k++)
+            counts.put(RenderStats.kindName(k), a[k] + b[k]);
+        return counts;
+    }
+}
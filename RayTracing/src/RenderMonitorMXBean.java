@@ -0,0 +1,24 @@
+/* interface RenderMonitorMXBean
+ * Management interface of RenderMonitor (render progress and counters,
+ * readable over JMX while a render is running)
+ */
+import java.util.*;
+
+public interface RenderMonitorMXBean
+{
+    public long   getTotalPixels();
+    public long   getPixelsDone();
+    public double getPercentDone();
+    public double getElapsedSeconds();
+
+    public long   getPrimaryRays();
+    public long   getShadowRays();
+    public long   getSecondaryRays();
+    public double getRaysPerSecond();
+
+    public long   getNodeVisits();
+
+    /** intersection tests (hit and shadow) per kind of shape */
+    public Map<String, Long> getIntersectionTests();
+    public Map<String, Long> getIntersectionHits();
+}
@@ -0,0 +1,129 @@
+/* class RenderStats
+ * Counters describing a render: rays traced, intersection tests and hits
+ * per kind of shape, acceleration structure node visits, and the time
+ * spent in each phase.  Each rendering thread counts into its own
+ * RenderStats (see RenderContext), and they are added up at the end.
+ */
+import java.io.*;
+import java.util.*;
+
+class RenderStats
+{
+    // Classes of shapes seen so far (a shape's kind is its index here)
+    private static List<Class<?>> kinds = new ArrayList<Class<?>>();
+
+    // Rays traced (shadow rays count once per light tested)
+    long primaryRays, shadowRays, secondaryRays;
+
+    // Calls to Shape.hit() and Shape.occludes(), and how many of them
+    // found a hit, for each kind of shape
+    long[] tests, hits;
+    long[] occlusionTests, occlusionHits;
+
+    // BVH nodes visited
+    long nodeVisits;
+
+    // Time spent parsing, setting up, rendering and writing the image
+    // (nanoseconds)
+    long parseTime, setupTime, renderTime, writeTime;
+
+    //------------------------------------------------------------------------
+
+    public RenderStats()
+    {
+        int n = kindCount();
+        tests          = new long[n];
+        hits           = new long[n];
+        occlusionTests = new long[n];
+        occlusionHits  = new long[n];
+    }
+
+    /** index of a shape class, for counting per kind of shape */
+    static synchronized int kindOf(Class<?> c)
+    {
+        int kind = kinds.indexOf(c);
+        if (kind < 0) {
+            kind = kinds.size();
+            kinds.add(c);
+        }
+        return kind;
+    }
+
+    static synchronized int kindCount()  { return kinds.size(); }
+
+    static synchronized String kindName(int kind)
+    {
+        return kinds.get(kind).getName();
+    }
+
+    //------------------------------------------------------------------------
+
+    /** add the counters of other to these (not the phase times) */
+    void add(RenderStats other)
+    {
+        primaryRays   += other.primaryRays;
+        shadowRays    += other.shadowRays;
+        secondaryRays += other.secondaryRays;
+        nodeVisits    += other.nodeVisits;
+
+        int n = Math.max(tests.length, other.tests.length);
+        if (tests.length < n) {
+            tests          = Arrays.copyOf(tests, n);
+            hits           = Arrays.copyOf(hits, n);
+            occlusionTests = Arrays.copyOf(occlusionTests, n);
+            occlusionHits  = Arrays.copyOf(occlusionHits, n);
+        }
+        for (int k = 0; k < other.tests.length; k++) {
+            tests[k]          += other.tests[k];
+            hits[k]           += other.hits[k];
+            occlusionTests[k] += other.occlusionTests[k];
+            occlusionHits[k]  += other.occlusionHits[k];
+        }
+    }
+
+    public long getRays() { return primaryRays + shadowRays + secondaryRays; }
+
+    public long getTests()
+    {
+        long n = 0;
+        for (int k = 0; k < tests.length; k++)
+            n += tests[k] + occlusionTests[k];
+        return n;
+    }
+
+    //------------------------------------------------------------------------
+
+    public void print(PrintStream out)
+    {
+        out.println("Time (ms)     : parse " + millis(parseTime) +
+                    ", setup " + millis(setupTime) +
+                    ", render " + millis(renderTime) +
+                    ", write " + millis(writeTime));
+
+        double seconds = renderTime / 1e9;
+        out.println("Rays          : " + primaryRays + " primary, " +
+                    shadowRays + " shadow, " + secondaryRays +
+                    " secondary" + (seconds > 0 ?
+                    String.format(" (%.0f rays/s)", getRays() / seconds) :
+                    ""));
+        out.println("BVH nodes     : " + nodeVisits + " visited" +
+                    (getRays() > 0 ?
+                     String.format(" (%.1f per ray)",
+                                   (double)nodeVisits / getRays()) : ""));
+
+        for (int k = 0; k < tests.length; k++) {
+            if (tests[k] == 0 && occlusionTests[k] == 0)
+                continue;
+
+            out.println(String.format("%-14s: %d tests, %d hits; " +
+                                      "%d shadow tests, %d hits",
+                                      kindName(k), tests[k], hits[k],
+                                      occlusionTests[k], occlusionHits[k]));
+        }
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
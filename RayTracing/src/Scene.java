@@ -5,52 +5,128 @@
  * Doug DeCarlo
  */
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.text.ParseException;
 import java.lang.reflect.*;
 import java.io.*;
+import java.nio.channels.*;
 import javax.vecmath.*;
 
 class Scene
 {
     // Scene elements
-    Vector<Shape>    objects    = new Vector<Shape>();
-    Vector<Light>    lights     = new Vector<Light>();
-    Vector<Material> materials  = new Vector<Material>();
+    List<Shape>    objects    = new ArrayList<Shape>();
+    List<Light>    lights     = new ArrayList<Light>();
+    List<Material> materials  = new ArrayList<Material>();
     Camera      camera     = null;
+
+    // Materials, and the other objects that have names, by name (the
+    // first of several with the same name)
+    Map<String,Material>        materialTable = new HashMap<String,Material>();
+    Map<String,RaytracerObject> namedObjects  =
+        new HashMap<String,RaytracerObject>();
+
+    // Texture images read so far, by canonical file name (so materials
+    // that use the same file share one copy)
+    Map<String,RGBImage> textures = new HashMap<String,RGBImage>();
     MatrixStack MStack     = new MatrixStack();
 
     RGBImage    image      = null;
 
+    // Image row at which image starts (when only a strip of the whole
+    // image is kept in memory)
+    int imageY0            = 0;
+
     // ------
     
-    // Current insertion point in hierarchy for parser
-    Vector<Shape> currentLevel;
-
-    // Hierarchy enable (if off, "up" and "down" have no effect)
-    // (Use this if you implement hierarchical object management or CSG)
-    // (if you turn this on, you'll need to re-write intersects() and 
-    // shadowTint() recursively for it to see the child objects!)
-    boolean hierarchyOn    = false;
+    // Current insertion point in hierarchy for parser, and the levels
+    // above it (the innermost last)
+    List<Shape> currentLevel;
+    Deque<List<Shape>> upperLevels = new ArrayDeque<List<Shape>>();
+
+    // Prototypes of instances (see Instance), by name, the one whose
+    // shapes are being read (null for the scene's), and the level to go
+    // back to at its end
+    Map<String,Prototype> prototypes =
+        new LinkedHashMap<String,Prototype>();
+    Prototype currentPrototype = null;
+    List<Shape> sceneLevel     = null;
+    Deque<List<Shape>> sceneUpperLevels = null;
+
+    // Hierarchy enable (if off, "up" and "down" have no effect, and all
+    // shapes are at the top level)
+    // (each shape with children gets bounds around all of them in setup(),
+    // so rays that miss them skip the children, see BVH.closestInGroup())
+    boolean hierarchyOn    = true;
     
     // ------
 
+    // Acceleration structure over objects (built in setup(); null when
+    // bruteForce is set, in which case every object is tested)
+    BVH bvh                = null;
+    boolean bruteForce     = false;
+
+    // Keep the analytic shapes added to the top level of the scene in a
+    // PrimitiveSet per class, rather than as shapes of their own (so
+    // scenes with many millions of them fit in memory), and the last one
+    // added (which down() takes back out, to give it children)
+    boolean compact        = false;
+    Map<Class<?>,PrimitiveSet> primitiveSets =
+        new LinkedHashMap<Class<?>,PrimitiveSet>();
+    Shape lastCompacted    = null;
+
+    // ------
+
     // Maximum recursion depth for a ray
     double recursionDepth  = 3;
     
     // Minimum t value in intersection computations
     double epsilon         = 1e-5;
+
+    // Shadow rays stop once less than this much light (in each of R, G
+    // and B) gets through
+    double shadowThreshold = 1e-3;
+
+    // Number of rendering threads, and side length of the (square) tiles
+    // the image is divided into for them
+    int threads            = Runtime.getRuntime().availableProcessors();
+    int tileSize           = 32;
+
+    // Scratch space of each rendering thread (replaced for each render,
+    // so the contexts of a finished render's threads can be collected)
+    ThreadLocal<RenderContext> contexts;
+    List<RenderContext> renderContexts = new ArrayList<RenderContext>();
+
+    // Time taken by each phase (the counters are kept by the rendering
+    // threads, see getStats())
+    RenderStats stats      = new RenderStats();
+
+    // When the current render started (System.nanoTime())
+    volatile long renderStart;
+
+    // Cost of each pixel of the last render (pixel (i,j) at j*width+i),
+    // kept if a heatmap is wanted: nanoseconds spent on the pixel, or
+    // intersection tests if heatmapTests is set (see getHeatmap())
+    boolean heatmap        = false;
+    boolean heatmapTests   = false;
+    float[] pixelCosts     = null;
+    int     costWidth, costHeight;
+
+    // Render progress (shared by the rendering threads)
+    AtomicLong pixelsDone = new AtomicLong();
+    long totalPixels;
+    int lastPercent;
+    boolean renderVerbose;
     
     // Constructor
     public Scene()
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
     {
         // Set hierarchy at top level
         currentLevel = objects;
 
         // Add default material
-        materials.addElement(new Material("default"));
+        addMaterial(new Material("default"));
     }
 
     //-----------------------------------------------------------------------
@@ -68,47 +144,268 @@ class Scene
 
         // Make a new image
         image = new RGBImage(width, height);
+        imageY0 = 0;
+
+        // Ray trace every pixel -- the main loop (tiles are handed out
+        // to the worker threads by the fork/join pool)
+        startRender((long)width * height, verbose);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new TileRenderer(this, 0, 0, width, height,
+                                         tileSize));
+        } finally {
+            pool.shutdown();
+        }
 
-        // Ray trace every pixel -- the main loop
-        for (int i = 0; i < image.getWidth(); i++) {
-            if (verbose)
-              System.out.print("Rendering " +
-                               (int)(100.0*i/(image.getWidth()-1)) + "%\r");
+        finishRender(verbose);
 
-            for (int j = 0; j < image.getHeight(); j++) {
-                // Compute (x,y) coordinates of pixel in [-1, 1]
-                double x = ((double)i)/(image.getWidth()  - 1) * 2 - 1;
-                double y = ((double)j)/(image.getHeight() - 1) * 2 - 1;
-	       
-                // Compute ray at pixel (x,y)
-                Ray r = camera.pixelRay(x, y);
-	       
-                // Compute resulting color at pixel (x,y)
-                Vector3d color = castRay(r, 0);
-	       
-                // Set color in image
-                image.setPixel(i,j, color);
+        return image;
+    }
+
+    /** render an image of size width X height straight into a PPM file,
+     *  one strip of rows (a tile high) at a time
+     *
+     *  Only one strip is kept in memory, so the memory needed depends on
+     *  the width of the image, but not its height (which is why there is
+     *  no heatmap: it needs the cost of every pixel)
+     */
+    public void renderToFile(int width, int height, String fileName,
+                             boolean verbose)
+        throws IOException
+    {
+        if (heatmap)
+          throw new IllegalStateException("No heatmap when rendering" +
+                                          " straight into a file");
+
+        // Set up camera for this image resolution
+        camera.setup(width, height);
+
+        startRender((long)width * height, verbose);
+        image = null;
+
+        FileChannel channel = new RandomAccessFile(fileName, "rw").getChannel();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            channel.truncate(0);
+            long headerLength = RGBImage.writeHeader(channel, width, height);
+            long rowLength = 3L * width;
+
+            // Strips are on tile boundaries, and are rendered from the top
+            // of the image down (the order of the rows in the file)
+            int strips = (height + tileSize - 1) / tileSize;
+            for (int strip = strips - 1; strip >= 0; strip--) {
+                int y0 = strip * tileSize;
+                int y1 = Math.min(y0 + tileSize, height);
+
+                if (image == null || image.getWidth() != width ||
+                    image.getHeight() != y1 - y0)
+                  image = new RGBImage(width, y1 - y0);
+                imageY0 = y0;
+
+                pool.invoke(new TileRenderer(this, 0, y0, width, y1,
+                                             tileSize));
+
+                RenderEvents.ImageWrite event = new RenderEvents.ImageWrite();
+                event.begin();
+
+                image.writeRows(channel,
+                                headerLength + (height - y1) * rowLength);
+
+                if (event.shouldCommit()) {
+                    event.fileName = fileName;
+                    event.width    = width;
+                    event.rows     = y1 - y0;
+                    event.commit();
+                }
             }
+        } finally {
+            pool.shutdown();
+            channel.close();
         }
 
+        finishRender(verbose);
+    }
+
+    /** get ready to render a number of pixels */
+    private void startRender(long pixels, boolean verbose)
+    {
+        renderStart = System.nanoTime();
+        renderVerbose = verbose;
+        totalPixels = pixels;
+
+        costWidth  = camera.width;
+        costHeight = camera.height;
+        pixelCosts = heatmap ? new float[costWidth * costHeight] : null;
+        pixelsDone.set(0);
+        lastPercent = -1;
+        contexts = newContexts();
+    }
+
+    private void finishRender(boolean verbose)
+    {
+        stats.renderTime = System.nanoTime() - renderStart;
+
         if (verbose) {
             System.out.println();
             System.out.println("Done!");
         }
+    }
 
-        return image;
+    /** ray trace the pixels in columns [x0, x1) and rows [y0, y1)
+     *  (safe to call from several threads on disjoint tiles; the rows
+     *  must be in the part of the image in memory, starting at imageY0)
+     */
+    void renderTile(int x0, int y0, int x1, int y1)
+    {
+        RenderContext ctx = contexts.get();
+        Ray r = ctx.ray;
+        Vector3d color = ctx.color;
+
+        RenderEvents.Tile event = new RenderEvents.Tile();
+        long primaryRays   = ctx.stats.primaryRays;
+        long shadowRays    = ctx.stats.shadowRays;
+        long secondaryRays = ctx.stats.secondaryRays;
+        event.begin();
+
+        // Compute the rays through all the pixels of the tile at once
+        double[] dirs = ctx.rayDirections((x1 - x0) * (y1 - y0));
+        camera.pixelRays(x0, y0, x1, y1, dirs);
+        r.getPoint().set(camera.originX, camera.originY, camera.originZ);
+
+        int k = 0;
+        for (int i = x0; i < x1; i++) {
+            for (int j = y0; j < y1; j++, k += 3) {
+                // Ray at pixel (i,j)
+                r.getDirection().set(dirs[k], dirs[k+1], dirs[k+2]);
+
+                long startCost = pixelCosts == null ? 0 : cost(ctx);
+	       
+                // Compute resulting color at pixel (i,j)
+                castRay(r, 0, ctx, color);
+
+                if (pixelCosts != null)
+                    pixelCosts[j*costWidth + i] = cost(ctx) - startCost;
+	       
+                // Set color in image
+                image.setPixel(i,j - imageY0, color);
+            }
+        }
+
+        if (event.shouldCommit()) {
+            event.x0 = x0;  event.y0 = y0;
+            event.x1 = x1;  event.y1 = y1;
+            event.primaryRays   = ctx.stats.primaryRays   - primaryRays;
+            event.shadowRays    = ctx.stats.shadowRays    - shadowRays;
+            event.secondaryRays = ctx.stats.secondaryRays - secondaryRays;
+            event.commit();
+        }
+
+        reportProgress((x1 - x0) * (y1 - y0));
+    }
+
+    /** create the per-thread scratch space for a render (each thread's
+     *  context is also kept in renderContexts, to add up their counts)
+     */
+    private ThreadLocal<RenderContext> newContexts()
+    {
+        synchronized (renderContexts) {
+            renderContexts.clear();
+        }
+
+        return new ThreadLocal<RenderContext>() {
+            protected RenderContext initialValue() {
+                RenderContext ctx = new RenderContext();
+                synchronized (renderContexts) {
+                    renderContexts.add(ctx);
+                }
+                return ctx;
+            }
+        };
+    }
+
+    /** the measure of cost used for the heatmap, so far on this thread */
+    private long cost(RenderContext ctx)
+    {
+        return heatmapTests ? ctx.stats.getTests() : System.nanoTime();
+    }
+
+    /** make a false color image of the cost of each pixel of the last
+     *  render, from blue (cheapest) through green and yellow to red (most
+     *  expensive), or null if the costs were not kept
+     *
+     *  Costs are scaled so the 99th percentile is red (timer hiccups and
+     *  pauses would otherwise leave everything else blue), and no gamma
+     *  correction is done, so the colors are linear in the cost
+     */
+    public RGBImage getHeatmap()
+    {
+        if (pixelCosts == null)
+          return null;
+
+        // (the percentile is estimated from a sample of the pixels)
+        int step = Math.max(1, pixelCosts.length / 100000);
+        float[] sample = new float[(pixelCosts.length + step - 1) / step];
+        for (int k = 0; k < sample.length; k++)
+            sample[k] = pixelCosts[k * step];
+        Arrays.sort(sample);
+        float max = sample.length > 0 ? sample[(sample.length - 1) * 99 / 100] : 0;
+
+        RGBImage heat = new RGBImage(costWidth, costHeight);
+        heat.setGamma(1.0);
+
+        for (int j = 0; j < costHeight; j++) {
+            for (int i = 0; i < costWidth; i++) {
+                double c = max > 0 ? pixelCosts[j*costWidth + i] / max : 0;
+
+                // Ramp: blue, cyan, green, yellow, red
+                c = 4 * Math.min(Math.max(c, 0.0), 1.0);
+                double r = Math.min(Math.max(c - 2, 0.0), 1.0);
+                double g = c < 2 ? Math.min(c, 1.0) : Math.min(4 - c, 1.0);
+                double b = Math.min(Math.max(2 - c, 0.0), 1.0);
+
+                heat.setPixel(i, j, r, g, b);
+            }
+        }
+
+        return heat;
+    }
+
+    /** print the percentage of pixels rendered so far */
+    private void reportProgress(int pixels)
+    {
+        int percent = (int)(100.0 * pixelsDone.addAndGet(pixels) /
+                            totalPixels);
+
+        if (renderVerbose) {
+            synchronized (pixelsDone) {
+                if (percent > lastPercent) {
+                    lastPercent = percent;
+                    System.out.print("Rendering " + percent + "%\r");
+                }
+            }
+        }
     }
 
     /** compute pixel color for ray tracing computation for ray r
-     *  (at a recursion depth)
+     *  (at a recursion depth) into color
+     *
+     *  Nothing is allocated: the intersection and shadow rays use the
+     *  scratch space in ctx (a recursive call would need its own ISect)
      */
-    private Vector3d castRay(Ray r, int depth)
+    void castRay(Ray r, int depth, RenderContext ctx, Vector3d color)
     {
-        Vector3d color = new Vector3d();
-        ISect isect = new ISect();
+        ISect isect = ctx.isect;
+
+        color.set(0.0, 0.0, 0.0);
+
+        if (depth == 0)
+            ctx.stats.primaryRays++;
+        else
+            ctx.stats.secondaryRays++;
 
         // Check if the ray hit any object (or recursion depth was exceeded)
-        if (depth <= recursionDepth && intersects(r, isect)) {
+        if (depth <= recursionDepth && intersects(r, isect, ctx)) {
             // -- Ray hit object as specified in isect
         	
             Material mat = isect.getHitObject().getMaterialRef();
@@ -120,9 +417,9 @@ class Scene
             for (int i = 0; i < lights.size(); i++) {
             	Light light = lights.get(i);
             	//System.out.println(isect.getHitPoint());
-            	Vector3d tint = shadowRay(isect, light);
+            	Vector3d tint = shadowRay(isect, light, ctx);
             	//System.out.println(tint);
-            	color.add(light.compute(isect, tint, r));
+            	light.compute(isect, tint, r, ctx, color);
             	
             	
             }
@@ -148,66 +445,64 @@ class Scene
             }*/
             //color.set(mat.getKd());
         }
-        
-        
-        return color;
     }
 
     /** determine the closest intersecting object along ray r (if any) 
      *  and its intersection point
+     *
+     *  The hit point and (normalized) normal in intersection are in world
+     *  space.  r is not modified; ctx.objRay receives r in the space of
+     *  each object tested.
      */
-    private boolean intersects(Ray r, ISect intersection)
-    {
-    	//System.out.println("r in: " + r);
-    	double shortestDistance = 0.0;
-    	int minIndex = 0;
-    	boolean retval = false;
-    	boolean minDistSet = false;
-    	Shape closestShape = null;
-    	
-        // For each object
-        for (int i = 0; i < objects.size(); i++) {
-            Shape current = (Shape) objects.get(i);
-            // transform ray into object space
-            current.getInvMatrix().transform(r.getDirection());
-            current.getInvMatrix().transform(r.getPoint());
-            // check for hit
-            if (current.hit(r, intersection, true, epsilon)) {
-            	retval=true;
-            	Vector3d d = new Vector3d(r.getPoint().x-intersection.getHitPoint().x,
-            							  r.getPoint().y-intersection.getHitPoint().y,
-            							  r.getPoint().z-intersection.getHitPoint().z);
-            	double dist = d.length();
-            	// if object is closer than others, take note
-            	if ((dist < shortestDistance) || !minDistSet) {
-            		minDistSet = true;
-            		shortestDistance = dist;
-            		minIndex = i;
-            	}
-            	
+    private boolean intersects(Ray r, ISect intersection, RenderContext ctx)
+    {
+        Ray objRay = ctx.objRay;
+        Shape closestShape = null, closestObject = null;
+        double closestT = Double.POSITIVE_INFINITY;
+        int closestPrimitive = -1;
+
+        if (bvh != null) {
+            closestShape = bvh.closestHit(r, intersection, epsilon, ctx);
+        } else {
+          Vector3d d = r.getDirection();
+          double invX = 1.0 / d.x, invY = 1.0 / d.y, invZ = 1.0 / d.z;
+
+          // For each object (and its children)
+          for (int i = 0; i < objects.size(); i++) {
+            // check for hit (t is the same in object and world space)
+            Shape current = BVH.closestInGroup(objects.get(i), r, invX, invY,
+                                               invZ, intersection, epsilon,
+                                               closestT, ctx);
+
+            // if object is closer than others, take note
+            if (current != null) {
+                closestShape = current;
+                closestObject = intersection.hitObject;
+                closestPrimitive = intersection.primitive;
+                closestT = intersection.getT();
             }
-            // transform ray back into world space
-            current.getMatrix().transform(r.getPoint());
-            current.getMatrix().transform(r.getDirection());
-            
-        }
-        
-        if (retval==true) {
-        	closestShape = objects.get(minIndex);
-        	// transform ray into object space
-        	closestShape.getInvMatrix().transform(r.getDirection());
-            closestShape.getInvMatrix().transform(r.getPoint());
-            // get the intersection
-        	closestShape.hit(r, intersection, false, epsilon);
-            // transform intersection and ray back into world space
-        	intersection.getNormal().normalize();
-        	closestShape.getMatrix().transform(intersection.getHitPoint());
-        	closestShape.getInvTMatrix().transform(intersection.getNormal());
-        	r.getDirection().scale(intersection.getT());
-        	closestShape.getMatrix().transform(r.getDirection());
-            closestShape.getMatrix().transform(r.getPoint());
+          }
+
+          if (closestShape != null) {
+              intersection.setT(closestT);
+              intersection.hitObject = closestObject;
+              intersection.primitive = closestPrimitive;
+          }
         }
-        return retval;
+
+        if (closestShape == null)
+            return false;
+
+        // get all the fields of the closest intersection
+        closestShape.toObjectSpace(r, objRay);
+        closestShape.hit(objRay, intersection, true, epsilon);
+
+        // transform the intersection into world space
+        intersection.getNormal().normalize();
+        closestShape.toWorldSpace(r, intersection);
+        intersection.getNormal().normalize();
+
+        return true;
     }
 
     /** compute the amount of unblocked color that is let through to
@@ -216,79 +511,116 @@ class Scene
      *  If the light is entirely blocked, return (0,0,0), not blocked at all
      *  return (1,1,1), and partially blocked return the product of Kt's
      *  (from transparent objects)
+     *
+     *  The result is ctx.tint (overwritten by the next call)
      */
-    Vector3d shadowRay(ISect intersection, Light light)
+    Vector3d shadowRay(ISect intersection, Light light, RenderContext ctx)
     {
-        Vector3d lightVec;
-        Point3d hitPoint = new Point3d(intersection.getHitPoint());
+        Ray feeler = ctx.shadowRay;
+        Point3d hitPoint = intersection.getHitPoint();
+        Vector3d lightVec = feeler.getDirection();
+
+        feeler.setOrigin(hitPoint);
+        ctx.stats.shadowRays++;
         
         if (light.isDirectional()) {
-        	lightVec = new Vector3d(light.direction);
+        	lightVec.set(light.direction);
         	//lightVec.normalize();
-        	return shadowTintDirectional(new Ray(hitPoint, lightVec));
+        	return shadowTintDirectional(feeler, ctx);
         } else {
-        	lightVec = new Vector3d(light.position.x-hitPoint.x, light.position.y-hitPoint.y, light.position.z-hitPoint.z);
+        	lightVec.set(light.position.x-hitPoint.x, light.position.y-hitPoint.y, light.position.z-hitPoint.z);
         	//lightVec.normalize();
-        	return shadowTint(new Ray(hitPoint, lightVec), 200.0);
+        	// (the light is at t=1 along the unnormalized lightVec)
+        	return shadowTint(feeler, 1.0, ctx);
         }
     }
 
     /** determine how the light is tinted along a particular ray which
      *  has no maximum distance (i.e. from a directional light)
      */
-    private Vector3d shadowTintDirectional(Ray r)
+    private Vector3d shadowTintDirectional(Ray r, RenderContext ctx)
     {
-        return shadowTint(r, Double.MAX_VALUE);
+        return shadowTint(r, Double.MAX_VALUE, ctx);
     }
 
     /** determine how the light is tinted along a particular ray, not
      *  considering intersections further than maxT
+     *  (r is not modified; the result is ctx.tint)
+     *
+     *  Only an occlusion test is done for each object (not a full
+     *  intersection), and the search stops as soon as the light is blocked
      */
-    private Vector3d shadowTint(Ray r, double maxT)
-    {
-    	boolean wasHit = false;
-        Vector3d tint = new Vector3d(0.0, 0.0, 0.0);
-        ISect intersection = new ISect();
-        // For each object
-        Enumeration e = objects.elements();
-        while (e.hasMoreElements()) {
-        	Shape current = (Shape) e.nextElement();
-        	current.getInvMatrix().transform(r.getDirection());
-            current.getInvMatrix().transform(r.getPoint());
-            if (current.hit(r, intersection, false, epsilon)) {
-            	wasHit = true;
-            	//Tools.termwiseMul3d(tint, intersection.getHitObject().getMaterialRef().getKt());
-            	//tint.set(0,0,0);
-            	tint.add(intersection.getHitObject().getMaterialRef().getKt());
+    private Vector3d shadowTint(Ray r, double maxT, RenderContext ctx)
+    {
+        Vector3d tint = ctx.tint;
+        ISect intersection = ctx.shadowISect;
+
+        tint.set(1.0, 1.0, 1.0);
+
+        if (bvh != null) {
+            bvh.shadowTint(r, intersection, epsilon, maxT, tint,
+                           shadowThreshold, ctx);
+        } else {
+            Vector3d d = r.getDirection();
+            double invX = 1.0 / d.x, invY = 1.0 / d.y, invZ = 1.0 / d.z;
+
+            // For each object (and its children)
+            for (int i = 0; i < objects.size(); i++) {
+                if (BVH.shadowTintGroup(objects.get(i), r, invX, invY, invZ,
+                                        intersection, epsilon, maxT, tint,
+                                        shadowThreshold, ctx))
+                    break;
             }
-            current.getMatrix().transform(r.getDirection());
-            current.getMatrix().transform(r.getPoint());
         }
         
-        if (!wasHit) tint.set(1.0,1.0,1.0);
-        
         return tint;
     }
 
+    /** filter the light tint by the Kt of an object blocking a shadow
+     *  ray (see Shape.transmittance(); scratch is the ISect its occludes()
+     *  was given), and return true if (almost) no light gets through
+     *  anymore, in which case the tint is set to (0,0,0)
+     */
+    static boolean transmit(Shape blocker, ISect scratch, Vector3d tint,
+                            double threshold)
+    {
+        Tools.termwiseMul3d(tint, blocker.transmittance(scratch));
+
+        if (tint.x < threshold && tint.y < threshold && tint.z < threshold) {
+            tint.set(0.0, 0.0, 0.0);
+            return true;
+        }
+        return false;
+    }
+
     //------------------------------------------------------------------------
 
-    /** Fetch a material by name */
+    /** Fetch a material by name (null if there is none yet) */
     Material getMaterial(String name)
     {
         // Unspecified material gets default
         if (name == null || name.length() == 0)
-          name = new String("default");
+          name = "default";
 
-        // Find the material with this name
-        for (int i = 0; i < materials.size(); i++){
-            Material mat = (Material)materials.elementAt(i);
+        return materialTable.get(name);
+    }
 
-            if (mat.getName().compareTo(name) == 0) {
-                return mat;
-            }
-        }
+    /** Fetch a named light, shape or camera */
+    public RaytracerObject getObject(String name)
+    {
+        return namedObjects.get(name);
+    }
 
-        throw new RuntimeException("Undefined material " + name);
+    void addMaterial(Material m)
+    {
+        materials.add(m);
+        materialTable.putIfAbsent(m.getName(), m);
+    }
+
+    void addName(RaytracerObject o)
+    {
+        if (o.getName().length() > 0)
+          namedObjects.putIfAbsent(o.getName(), o);
     }
 
     /** Add a new scene element */
@@ -299,22 +631,261 @@ class Scene
 
             l.transform(MStack.peek());
 
-            lights.addElement(l);
+            lights.add(l);
+            addName(l);
         } else if (newItem instanceof Material) {
             Material m = (Material)newItem;
 
-            materials.addElement(m);
+            addMaterial(m);
         } else if (newItem instanceof Shape) {
             Shape s = (Shape)newItem;
 
+            if (s instanceof Instance && currentPrototype != null)
+              throw new IllegalStateException("Instance inside prototype " +
+                                              currentPrototype.name);
+
             s.parent = currentLevel;
-            s.setMaterialRef(getMaterial(s.getMaterialName()));
+            // (shapes made in code may already have their material; one
+            // that isn't defined yet is looked up again by setup())
+            if (s.getMaterialRef() == null)
+              s.setMaterialRef(getMaterial(s.getMaterialName()));
             s.setMatrix(MStack.peek());
 
-            currentLevel.addElement(s);
+            if (currentLevel == objects)
+              lastCompacted = null;
+            if (compact && currentLevel == objects && PrimitiveSet.holds(s))
+              addCompacted(s);
+            else
+              currentLevel.add(s);
+            addName(s);
         }
         else if (newItem instanceof Camera){
             camera = (Camera)newItem;
+            addName(camera);
+        }
+    }
+
+    /** add s to the set of shapes of its class (see compact) */
+    private void addCompacted(Shape s)
+    {
+        PrimitiveSet set = primitiveSets.get(s.getClass());
+        if (set == null) {
+            set = new PrimitiveSet(s);
+            set.parent = objects;
+            objects.add(set);
+            primitiveSets.put(s.getClass(), set);
+        }
+
+        set.add(s);
+        lastCompacted = s;
+    }
+
+    /** start reading the shapes of a new prototype: they go into the
+     *  prototype instead of the scene until endPrototype(), with the
+     *  matrix stack pushed and the identity on top (so they are in the
+     *  space of the prototype)
+     */
+    public Prototype beginPrototype(String name)
+    {
+        if (currentPrototype != null)
+          throw new IllegalStateException("Prototype " + name +
+                                          " inside prototype " +
+                                          currentPrototype.name);
+        if (prototypes.containsKey(name))
+          throw new IllegalStateException("Prototype " + name +
+                                          " defined twice");
+
+        currentPrototype = new Prototype(name);
+        prototypes.put(name, currentPrototype);
+
+        sceneLevel       = currentLevel;
+        sceneUpperLevels = upperLevels;
+        currentLevel     = currentPrototype.objects;
+        upperLevels      = new ArrayDeque<List<Shape>>();
+        MStack.push(null);
+        MStack.peek().setIdentity();
+
+        return currentPrototype;
+    }
+
+    /** go back to reading the shapes of the scene (at the level it was
+     *  at when the prototype began)
+     */
+    public void endPrototype()
+    {
+        if (currentPrototype == null)
+          throw new IllegalStateException("End of prototype outside of" +
+                                          " a prototype");
+
+        MStack.pop();
+        currentLevel     = sceneLevel;
+        upperLevels      = sceneUpperLevels;
+        currentPrototype = null;
+    }
+
+    /** make the children of the last shape added the current level (the
+     *  shapes added next go into them)
+     */
+    public void down()
+    {
+        // (a shape kept in a set goes back into the scene to have them)
+        if (currentLevel == objects && lastCompacted != null) {
+          primitiveSets.get(lastCompacted.getClass()).removeLast();
+          objects.add(lastCompacted);
+          lastCompacted = null;
+        }
+
+        if (currentLevel.isEmpty())
+          throw new IllegalStateException("Cannot use 'down' without" +
+                                          " creating a child object first");
+
+        Shape last = currentLevel.get(currentLevel.size() - 1);
+        if (last.children == null)
+          last.children = new ArrayList<Shape>();
+
+        upperLevels.addLast(currentLevel);
+        currentLevel = last.children;
+    }
+
+    /** go back to the level above the current one */
+    public void up()
+    {
+        if (upperLevels.isEmpty())
+          throw new IllegalStateException("Hierarchy underflow");
+
+        currentLevel = upperLevels.removeLast();
+    }
+
+    /** give each shape with children (at any depth in shapes) bounds
+     *  around its own world bounds and those of all its descendants,
+     *  padded like the bounds in BVH
+     */
+    void computeGroupBounds(List<Shape> shapes)
+    {
+        double[] b = new double[6];
+
+        for (int i = 0; i < shapes.size(); i++) {
+            Shape s = shapes.get(i);
+            if (s.children == null)
+              continue;
+
+            computeGroupBounds(s.children);
+
+            double[] group = new double[6];
+            s.getWorldBounds(group, 0);
+            BVH.pad(group, 0);
+            for (int j = 0; j < s.children.size(); j++) {
+                Shape child = s.children.get(j);
+                double[] cb = child.groupBounds;
+                if (cb == null) {
+                    child.getWorldBounds(b, 0);
+                    BVH.pad(b, 0);
+                    cb = b;
+                }
+                for (int k = 0; k < 3; k++) {
+                    group[k]   = Math.min(group[k],   cb[k]);
+                    group[k+3] = Math.max(group[k+3], cb[k+3]);
+                }
+            }
+            s.groupBounds = group;
+        }
+    }
+
+    /** look up the materials of shapes that came before their material
+     *  in the scene file (and the prototypes of instances)
+     */
+    void resolveMaterials(List<Shape> shapes)
+    {
+        for (int i = 0; i < shapes.size(); i++) {
+            Shape s = shapes.get(i);
+
+            if (s instanceof Instance)
+              ((Instance)s).resolve(this);
+            if (s instanceof PrimitiveSet)
+              resolveMaterials(((PrimitiveSet)s).kernels);
+
+            if (s.getMaterialRef() == null) {
+                Material mat = getMaterial(s.getMaterialName());
+                if (mat == null)
+                  throw new RuntimeException("Undefined material " +
+                                             s.getMaterialName());
+                s.setMaterialRef(mat);
+            }
+
+            if (s.children != null)
+              resolveMaterials(s.children);
+        }
+    }
+
+    /** read the texture files of the materials, each file once (however
+     *  many materials use it), and several files at a time
+     */
+    void loadTextures()
+    {
+        // materials without an image yet, by canonical texture file name
+        Map<String,List<Material>> users =
+            new LinkedHashMap<String,List<Material>>();
+        for (int i = 0; i < materials.size(); i++) {
+            Material mat = materials.get(i);
+            if (mat.textureFileName == null || mat.textureImage != null)
+              continue;
+
+            String key;
+            try {
+                key = new File(mat.textureFileName).getCanonicalPath();
+            } catch (IOException e) {
+                key = mat.textureFileName;
+            }
+
+            List<Material> list = users.get(key);
+            if (list == null) {
+                list = new ArrayList<Material>();
+                users.put(key, list);
+            }
+            list.add(mat);
+        }
+
+        // read the files not in the cache yet
+        List<Callable<RGBImage>> reads = new ArrayList<Callable<RGBImage>>();
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<String,List<Material>> e : users.entrySet()) {
+            if (textures.containsKey(e.getKey()))
+              continue;
+
+            final String fileName = e.getValue().get(0).textureFileName;
+            keys.add(e.getKey());
+            reads.add(new Callable<RGBImage>() {
+                public RGBImage call() {
+                    return Material.readTexture(fileName, Trace.verbose);
+                }
+            });
+        }
+
+        if (!reads.isEmpty()) {
+            ForkJoinPool pool =
+                new ForkJoinPool(Math.min(threads, reads.size()));
+            try {
+                List<Future<RGBImage>> images = pool.invokeAll(reads);
+                for (int i = 0; i < keys.size(); i++)
+                  textures.put(keys.get(i), images.get(i).get());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // hand out the images (a file that couldn't be read leaves its
+        // materials untextured)
+        for (Map.Entry<String,List<Material>> e : users.entrySet()) {
+            RGBImage image = textures.get(e.getKey());
+            for (Material mat : e.getValue()) {
+                mat.textureImage = image;
+                if (image == null)
+                  mat.textureFileName = null;
+            }
         }
     }
 
@@ -324,15 +895,68 @@ class Scene
         ClassNotFoundException,IllegalAccessException,
         InvocationTargetException
     {
+        long startTime = System.nanoTime();
+        RenderEvents.Setup event = new RenderEvents.Setup();
+        event.begin();
+
         // Specify default camera if none specified in scene file
         if (camera == null)
           camera = new Camera();
 
-        // Set up materials
+        // Set up materials, and give shapes the ones defined after them
+        loadTextures();
         for (int i = 0; i < materials.size(); i++){
-            Material mat = (Material)materials.elementAt(i);
+            Material mat = materials.get(i);
             mat.setup(Trace.verbose);
         }
+        if (currentPrototype != null)
+          throw new IllegalStateException("Prototype " +
+                                          currentPrototype.name +
+                                          " has no end");
+        for (Prototype p : prototypes.values()) {
+            resolveMaterials(p.objects);
+            computeGroupBounds(p.objects);
+            p.setup(threads);
+        }
+        resolveMaterials(objects);
+        for (PrimitiveSet set : primitiveSets.values())
+          set.setup(threads);
+        computeGroupBounds(objects);
+
+        // Build the acceleration structure
+        bvh = null;
+        if (!bruteForce && !objects.isEmpty()) {
+            bvh = new BVH(objects, threads);
+
+            if (Trace.verbose)
+              bvh.printStats(System.out);
+        }
+
+        stats.setupTime = System.nanoTime() - startTime;
+
+        if (event.shouldCommit()) {
+            event.objects   = objects.size();
+            event.materials = materials.size();
+            event.commit();
+        }
+    }
+
+    /** the counters of the last render (or the one in progress), added
+     *  up over the rendering threads, and the time taken by each phase
+     */
+    public RenderStats getStats()
+    {
+        RenderStats total = new RenderStats();
+        total.parseTime  = stats.parseTime;
+        total.setupTime  = stats.setupTime;
+        total.renderTime = stats.renderTime;
+        total.writeTime  = stats.writeTime;
+
+        synchronized (renderContexts) {
+            for (RenderContext ctx : renderContexts)
+                total.add(ctx.stats);
+        }
+        return total;
     }
 
     //-------------------------------------------------------------------------
@@ -341,4 +965,20 @@ class Scene
     public RGBImage getImage() { return image; }
     public void setImage(RGBImage newImage) { image = newImage; }
     public MatrixStack getMStack()  { return MStack; }
+
+    public int  getThreads()                { return threads; }
+    public int  getTileSize()               { return tileSize; }
+    public void setThreads(int newThreads)  { threads = newThreads; }
+    public void setTileSize(int newSize)    { tileSize = newSize; }
+    public void setBruteForce(boolean b)    { bruteForce = b; }
+    public void setCompact(boolean b)       { compact = b; }
+
+    /** keep the cost of each pixel for getHeatmap(), counting
+     *  intersection tests if tests is set, otherwise time
+     */
+    public void setHeatmap(boolean on, boolean tests)
+    {
+        heatmap      = on;
+        heatmapTests = tests;
+    }
 }
@@ -0,0 +1,221 @@
+/* class SceneBuilder
+ * Builds a scene in code, the way a scene file would describe it, but
+ * without writing it out and parsing it back: materials, lights, the
+ * camera, matrix stack transformations and shapes.  For instance
+ *
+ *   SceneBuilder b = new SceneBuilder();
+ *   Material red = b.material("red");
+ *   red.setKd(new Vector3d(1, 0, 0));
+ *   b.light(new Point3d(5, 5, 5), new Vector3d(1, 1, 1));
+ *   b.push().translate(0, 0, -5).scale(2, 2, 2);
+ *   b.sphere(red);
+ *   b.pop();
+ *
+ *   Scene s = b.getScene();
+ *   s.setup();
+ *   s.render(640, 480, false);
+ */
+import java.io.*;
+import javax.vecmath.*;
+
+class SceneBuilder
+{
+    Scene scene;
+
+    // Scratch vector for the transformations
+    private Vector3d v = new Vector3d();
+
+    public SceneBuilder()
+    {
+        this(new Scene());
+    }
+
+    /** add to an existing scene (at its current matrix) */
+    public SceneBuilder(Scene s)
+    {
+        scene = s;
+    }
+
+    public Scene getScene() { return scene; }
+
+    //------------------------------------------------------------------------
+    // Scene objects
+
+    /** set the camera (look is the view direction) */
+    public Camera camera(Point3d eye, Vector3d look, Vector3d up,
+                         double fovy, double near)
+    {
+        Camera c = new Camera();
+        c.eye.set(eye);
+        c.look.set(look);
+        c.up.set(up);
+        c.fovy = fovy;
+        c.near = near;
+
+        scene.addObject(c);
+        return c;
+    }
+
+    /** add a (black) material; set its colors with its setters */
+    public Material material(String name)
+    {
+        Material m = new Material();
+        m.name = name;
+
+        scene.addObject(m);
+        return m;
+    }
+
+    /** give m a texture image (read when the scene is set up) */
+    public void texture(Material m, String fileName,
+                        double scaleU, double scaleV)
+    {
+        m.textureFileName = fileName;
+        m.textureScaleU   = scaleU;
+        m.textureScaleV   = scaleV;
+    }
+
+    /** give m a checker texture */
+    public void checker(Material m, Vector3d color1, Vector3d color2,
+                        double scaleU, double scaleV)
+    {
+        m.checkerColor1 = new Vector3d(color1);
+        m.checkerColor2 = new Vector3d(color2);
+        m.textureScaleU = scaleU;
+        m.textureScaleV = scaleV;
+    }
+
+    /** add a point light (transformed by the current matrix) */
+    public Light light(Point3d position, Vector3d color)
+    {
+        Light l = new Light();
+        l.setPosition(position);
+        l.setColor(new Vector3d(color));
+
+        scene.addObject(l);
+        return l;
+    }
+
+    /** add a directional light (transformed by the current matrix) */
+    public Light directionalLight(Vector3d direction, Vector3d color)
+    {
+        Light l = new Light();
+        l.setDirection(direction);
+        l.setColor(new Vector3d(color));
+
+        scene.addObject(l);
+        return l;
+    }
+
+    //------------------------------------------------------------------------
+    // Shapes (transformed by the current matrix, with material m, or the
+    // default material if m is null)
+
+    public Sphere   sphere(Material m)   { return shape(new Sphere(), m); }
+    public Box      box(Material m)      { return shape(new Box(), m); }
+    public Cylinder cylinder(Material m) { return shape(new Cylinder(), m); }
+    public Cone     cone(Material m)     { return shape(new Cone(), m); }
+
+    /** add a triangle mesh read from an OBJ file */
+    public Mesh mesh(String fileName, Material m) throws IOException
+    {
+        Mesh mesh = new Mesh();
+        mesh.load(fileName);
+        return shape(mesh, m);
+    }
+
+    /** add an instance of a prototype (see prototype()) */
+    public Instance instance(Prototype p)
+    {
+        Instance i = new Instance();
+        i.prototypeName = p.name;
+        i.prototype     = p;
+        return shape(i, null);
+    }
+
+    /** add any shape */
+    public <T extends Shape> T shape(T shape, Material m)
+    {
+        if (m != null) {
+            shape.materialName = m.name;
+            shape.materialRef  = m;
+        }
+
+        scene.addObject(shape);
+        return shape;
+    }
+
+    //------------------------------------------------------------------------
+    // Prototypes (shapes added between prototype() and end() go into the
+    // prototype, in its own space, rather than into the scene)
+
+    public Prototype prototype(String name)
+    {
+        return scene.beginPrototype(name);
+    }
+
+    public SceneBuilder end()
+    {
+        scene.endPrototype();
+        return this;
+    }
+
+    //------------------------------------------------------------------------
+    // Hierarchy (shapes added between down() and up() become children of
+    // the shape added last before down())
+
+    public SceneBuilder down()
+    {
+        scene.down();
+        return this;
+    }
+
+    public SceneBuilder up()
+    {
+        scene.up();
+        return this;
+    }
+
+    //------------------------------------------------------------------------
+    // Matrix stack (these all work just like OpenGL, as in the scene file)
+
+    public SceneBuilder push()
+    {
+        scene.MStack.push(null);
+        return this;
+    }
+
+    public SceneBuilder pop()
+    {
+        scene.MStack.pop();
+        return this;
+    }
+
+    public SceneBuilder identity()
+    {
+        scene.MStack.peek().setIdentity();
+        return this;
+    }
+
+    public SceneBuilder translate(double x, double y, double z)
+    {
+        v.set(x, y, z);
+        scene.MStack.translate(v);
+        return this;
+    }
+
+    /** rotate by angle (in degrees) about the axis (ax,ay,az) */
+    public SceneBuilder rotate(double angle, double ax, double ay, double az)
+    {
+        v.set(ax, ay, az);
+        scene.MStack.rotate(angle, v);
+        return this;
+    }
+
+    public SceneBuilder scale(double x, double y, double z)
+    {
+        v.set(x, y, z);
+        scene.MStack.scale(v);
+        return this;
+    }
+}
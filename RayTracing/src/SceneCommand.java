@@ -7,159 +7,189 @@
 import java.io.*;
 import javax.vecmath.*;
 import java.text.*;
-import java.lang.reflect.*;
 import java.util.*;
 
 /** implements the reader for a scene file command
+ *
+ * A command is read first, and applied to the scene afterwards (commands
+ * in included files are read ahead of time, see Parser)
  */
 class SceneCommand
 {
-    String[] names = { "push", "pop", "identity",
-		       "translate", "rotate", "scale",
-		       "up", "down" };
+    /** the command (e.g. "translate") */
+    String name;
+
+    /** its arguments: the vector of translate, rotate and scale, the
+        angle of rotate, and the name of prototype */
+    Vector3d vector;
+    double   angle;
+    String   word;
+
+    /** line the command was on (for errors when it is applied) */
+    int lineno;
 
     /** constructor. All kinds of operations will be treated as regular
         parameters, setting some flags about the data.
     */
-    public SceneCommand(StreamTokenizer tokenizer, Scene s)
-           throws ParseException,  IOException, InvocationTargetException,
-                  ClassNotFoundException, IllegalAccessException,
-                  NoSuchMethodException
+    public SceneCommand(StreamTokenizer tokenizer)
+           throws ParseException,  IOException
     {
 	if (tokenizer.ttype!=StreamTokenizer.TT_WORD)
 	    throw new ParseException("Name expected instead of " + tokenizer,
 				     tokenizer.lineno());
-	Class[] paramList = {tokenizer.getClass(), s.getClass()};
-	Object[] params = {tokenizer, s };
-	
-	int i;
-	for (i=0; i<names.length; i++) {
-	    if (names[i].compareTo(tokenizer.sval)==0) {
-		// check for '{'
-		tokenizer.nextToken();
-		if ( tokenizer.ttype!='{' )
-		    throw new ParseException("No \"{\" found",
-					     tokenizer.lineno());
-		
-		// call the appropriate method
-		Method m = getClass().getMethod(names[i],paramList);
-		m.invoke(this,params);
-		
-		// check for '}'
-		tokenizer.nextToken();
-		if ( tokenizer.ttype!='}' )
-		    throw new ParseException("No \"}\" found",
-					     tokenizer.lineno());
-		break;
-	    }
-	}
+	name   = tokenizer.sval;
+	lineno = tokenizer.lineno();
 
-	if (i>=names.length)
+	switch (name) {
+	  case "push": case "pop": case "identity":
+	  case "translate": case "rotate": case "scale":
+	  case "up": case "down":
+	  case "prototype": case "end":
+	    break;
+	  default:
 	    throw new ParseException("Unknows token "+tokenizer,
 				     tokenizer.lineno());
+	}
+
+	// check for '{'
+	tokenizer.nextToken();
+	if ( tokenizer.ttype!='{' )
+	    throw new ParseException("No \"{\" found", tokenizer.lineno());
+
+	// read the arguments
+	switch (name) {
+	  case "translate":
+	  case "scale":
+	    vector = Parser.readVector3d(tokenizer);
+	    break;
+	  case "rotate":
+	    // the angle, then axis
+	    angle  = Parser.readDouble(tokenizer).doubleValue();
+	    vector = Parser.readVector3d(tokenizer);
+	    break;
+	  case "prototype":
+	    word   = Parser.readString(tokenizer);
+	    break;
+	}
+
+	// check for '}'
+	tokenizer.nextToken();
+	if ( tokenizer.ttype!='}' )
+	    throw new ParseException("No \"}\" found", tokenizer.lineno());
+    }
+
+    /** apply the command to the scene */
+    public void apply(Scene s)
+	throws ParseException
+    {
+	// call the appropriate method
+	switch (name) {
+	  case "push":      push(s);      break;
+	  case "pop":       pop(s);       break;
+	  case "identity":  identity(s);  break;
+	  case "translate": translate(s); break;
+	  case "rotate":    rotate(s);    break;
+	  case "scale":     scale(s);     break;
+	  case "up":        up(s);        break;
+	  case "down":      down(s);      break;
+	  case "prototype": prototype(s); break;
+	  case "end":       end(s);       break;
+	}
     }
 
     //-----------------------------------------------------------------------
     // Transformations
 
     /** emulates glPushMatrix */
-    public void push(StreamTokenizer tokenizer, Scene s)
+    public void push(Scene s)
     {
-	// nothing to read from the tokenizer
 	s.getMStack().push(null);
     }
     
     /** emulates glPopMatrix */
-    public void pop(StreamTokenizer tokenizer, Scene s)
+    public void pop(Scene s)
     {
-	// nothing to read from tokenizer
 	s.getMStack().pop();
     }
 
     /** emulates glLoadIdentity */
-    public void identity(StreamTokenizer tokenizer, Scene s)
+    public void identity(Scene s)
     {
-	// nothing to read from tokenizer
 	s.getMStack().peek().setIdentity();
     }
     
     /** emulates glTranslate */
-    public void translate( StreamTokenizer tokenizer, Scene s)
-	throws ParseException, IOException
+    public void translate(Scene s)
     {
-        // read the vector
-        Vector3d newTranslation = Parser.readVector3d(tokenizer);
-	
-        // set translation matrix
-        Matrix4d m = new Matrix4d();
-        m.setIdentity();
-        m.setTranslation(newTranslation);
-        s.getMStack().push(m);
+        s.getMStack().translate(vector);
     }
 
     /** emulates glRotate */
-    public void rotate( StreamTokenizer tokenizer, Scene s )
-	throws ParseException, IOException
+    public void rotate(Scene s)
     {
-        // read the angle, then axis
-        double angle = Parser.readDouble(tokenizer).doubleValue();
-        Vector3d v   = Parser.readVector3d(tokenizer);
-	
-        Matrix4d m = new Matrix4d();
-        m.setIdentity();
-        m.setRotation(new AxisAngle4d(v, angle * Math.PI / 180));
-        s.getMStack().push(m);
+        s.getMStack().rotate(angle, vector);
     }
 
     /** emulates glScale */
-    public void scale( StreamTokenizer tokenizer, Scene s)
-	throws ParseException, IOException
+    public void scale(Scene s)
     {
-        // read the vector
-        Vector3d newScale = Parser.readVector3d(tokenizer);
-	
-        // set the scale matrix
-        Matrix4d m = new Matrix4d();
-        m.setIdentity();
-        m.setElement(0, 0, newScale.x);
-        m.setElement(1, 1, newScale.y);
-        m.setElement(2, 2, newScale.z);
-        s.getMStack().push(m);
+        s.getMStack().scale(vector);
+    }
+
+    // -----------------------------------------------------------------------
+    // Prototypes (see Instance)
+
+    /** start reading the shapes of a prototype */
+    public void prototype(Scene s)
+        throws ParseException
+    {
+	try {
+	    s.beginPrototype(word);
+	} catch (IllegalStateException e) {
+	    throw new ParseException(e.getMessage(), lineno);
+	}
+    }
+
+    /** go back to the shapes of the scene */
+    public void end(Scene s)
+        throws ParseException
+    {
+	try {
+	    s.endPrototype();
+	} catch (IllegalStateException e) {
+	    throw new ParseException(e.getMessage(), lineno);
+	}
     }
 
     // -----------------------------------------------------------------------
     // Hierarchy
 
     /** Move up in hierarchy */
-    public void up(StreamTokenizer tokenizer, Scene s)
+    public void up(Scene s)
         throws ParseException
     {
 	if (!s.hierarchyOn)
 	  return;
 
-	if (s.currentLevel == s.objects) {
-	    throw new ParseException("Hierarchy underflow",
-				     tokenizer.lineno());
-	} else {
-	    // Move up in hierarchy
-	    s.currentLevel = ((Shape)s.currentLevel.firstElement()).parent;
+	try {
+	    s.up();
+	} catch (IllegalStateException e) {
+	    throw new ParseException(e.getMessage(), lineno);
 	}
     }
 
     /** Move down in hierarchy */
-    public void down(StreamTokenizer tokenizer, Scene s)
+    public void down(Scene s)
         throws ParseException
     {
 	if (!s.hierarchyOn)
 	  return;
 
-	if (s.currentLevel.isEmpty()) {
-	    throw new ParseException("Cannot use 'down' without creating" +
-				     " a child object first",
-				     tokenizer.lineno());
-	} else {
-	    // Move down in hierarchy (into last child)
-	    s.currentLevel = ((Shape)s.currentLevel.lastElement()).children;
+	// (into the children of the last object created at this level)
+	try {
+	    s.down();
+	} catch (IllegalStateException e) {
+	    throw new ParseException(e.getMessage(), lineno);
 	}
     }
 }
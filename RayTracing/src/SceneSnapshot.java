@@ -0,0 +1,507 @@
+/* class SceneSnapshot
+ * Saves a parsed and set up scene (camera, materials with their decoded
+ * textures, lights, and shapes with their matrices) in a binary file, and
+ * loads it back through a memory-mapped file, without tokenizing the
+ * scene file or inverting any matrices
+ *
+ * File layout (big-endian):
+ *   int magic, int version
+ *   camera:    byte present, eye, look, up (3 doubles each), fovy, near
+ *   materials: int count, then for each
+ *                name, ka, kd, ks, kt, index, shininess,
+ *                texture file name, texture scale u, v,
+ *                byte checker [checker color 1, 2],
+ *                byte texture image [width, height, gamma, pixels (floats)]
+ *   lights:    int count, then for each
+ *                name, byte directional, position or direction, color,
+ *                attenuation
+ *   shapes:    int class count, class names,
+ *              int count, then for each
+ *                int class, name, int material, M, MInverse, MTInverse,
+ *                [mesh file name (meshes are read again from it)],
+ *                children (int count, then each as above)
+ * Strings are an int length (-1 for null) and UTF-8 bytes, vectors are 3
+ * doubles and matrices 16 (row by row).
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Supplier;
+import javax.vecmath.*;
+
+class SceneSnapshot
+{
+    // First bytes of a snapshot file ("RTSN"), and the format version
+    static final int MAGIC   = 0x5254534e;
+    static final int VERSION = 3;
+
+    // Size of the write buffer, and of the parts of the file mapped at a
+    // time when loading (so files over 2GB can be read)
+    static final int BUFFER_SIZE = 1 << 20;
+    static final long WINDOW_SIZE = 1 << 28;
+
+    // Shape classes that can be loaded, by class name
+    private static final Map<String,Supplier<Shape>> shapeTypes =
+        new HashMap<String,Supplier<Shape>>();
+
+    static
+    {
+        shapeTypes.put("Sphere",   Sphere::new);
+        shapeTypes.put("Box",      Box::new);
+        shapeTypes.put("Cylinder", Cylinder::new);
+        shapeTypes.put("Cone",     Cone::new);
+        shapeTypes.put("Mesh",     Mesh::new);
+    }
+
+    private FileChannel channel;
+    private ByteBuffer  buffer;
+
+    // Position in the file of the start of buffer
+    private long base;
+
+    // Length of the file being loaded
+    private long size;
+
+    private SceneSnapshot(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** true if fileName starts like a snapshot (rather than a scene file) */
+    static boolean isSnapshot(String fileName) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                                                    StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(4);
+            while (b.hasRemaining())
+                if (channel.read(b) < 0)
+                    return false;
+            return b.getInt(0) == MAGIC;
+        }
+    }
+
+    /** save the scene s (after setup()) to fileName */
+    static void save(Scene s, String fileName) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(
+                 Paths.get(fileName), StandardOpenOption.WRITE,
+                 StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            SceneSnapshot out = new SceneSnapshot(channel);
+            out.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            out.write(s);
+            out.flush();
+        }
+    }
+
+    /** load the snapshot in fileName into the (new) scene s, which still
+     *  needs setup() (that builds the BVH)
+     */
+    static void load(Scene s, String fileName) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                                                    StandardOpenOption.READ)) {
+            SceneSnapshot in = new SceneSnapshot(channel);
+            in.size = channel.size();
+            in.map(0);
+            in.read(s);
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Saving
+
+    private void write(Scene s) throws IOException
+    {
+        room(8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+
+        // Camera
+        Camera c = s.camera;
+        room(1);
+        buffer.put((byte)(c != null ? 1 : 0));
+        if (c != null) {
+            putTuple(c.eye);
+            putTuple(c.look);
+            putTuple(c.up);
+            putDouble(c.fovy);
+            putDouble(c.near);
+        }
+
+        // Materials (shapes refer to them by index)
+        Map<Material,Integer> materialIndex =
+            new IdentityHashMap<Material,Integer>();
+        putInt(s.materials.size());
+        for (Material m : s.materials) {
+            materialIndex.put(m, materialIndex.size());
+
+            putString(m.name);
+            putTuple(m.ambient);
+            putTuple(m.diffuse);
+            putTuple(m.specular);
+            putTuple(m.transparent);
+            putDouble(m.index);
+            putDouble(m.shininess);
+            putString(m.textureFileName);
+            putDouble(m.textureScaleU);
+            putDouble(m.textureScaleV);
+
+            putBoolean(m.checkerColor1 != null);
+            if (m.checkerColor1 != null) {
+                putTuple(m.checkerColor1);
+                putTuple(m.checkerColor2);
+            }
+
+            RGBImage image = m.textureImage;
+            putBoolean(image != null);
+            if (image != null) {
+                putInt(image.width);
+                putInt(image.height);
+                putDouble(image.gamma);
+                for (int i = 0; i < image.length; i++) {
+                    room(4);
+                    buffer.putFloat(image.data[i]);
+                }
+            }
+        }
+
+        // Lights (already transformed)
+        putInt(s.lights.size());
+        for (Light l : s.lights) {
+            putString(l.name);
+            putBoolean(l.isDirectional());
+            putTuple(l.isDirectional() ? l.direction : l.position);
+            putTuple(l.color);
+            putTuple(l.attenuation);
+        }
+
+        // Shapes
+        List<String> classes = new ArrayList<String>();
+        addClasses(s.objects, classes);
+
+        putInt(classes.size());
+        for (String name : classes)
+            putString(name);
+
+        putShapes(s.objects, classes, materialIndex);
+    }
+
+    /** add the class names of shapes and their descendants to classes */
+    private static void addClasses(List<Shape> shapes, List<String> classes)
+        throws IOException
+    {
+        for (Shape shape : shapes) {
+            String name = shape.getClass().getName();
+            if (!shapeTypes.containsKey(name))
+                throw new IOException(name + " can't be saved in a " +
+                                      "scene snapshot");
+            if (!classes.contains(name))
+                classes.add(name);
+
+            if (shape.children != null)
+                addClasses(shape.children, classes);
+        }
+    }
+
+    private void putShapes(List<Shape> shapes, List<String> classes,
+                           Map<Material,Integer> materialIndex)
+        throws IOException
+    {
+        putInt(shapes.size());
+        for (Shape shape : shapes) {
+            Integer material = materialIndex.get(shape.materialRef);
+            if (material == null)
+                throw new IOException("Material of " + shape.name +
+                                      " is not in the scene");
+
+            putInt(classes.indexOf(shape.getClass().getName()));
+            putString(shape.name);
+            putInt(material);
+            putMatrix(shape.M);
+            putMatrix(shape.MInverse);
+            putMatrix(shape.MTInverse);
+
+            if (shape instanceof Mesh)
+                putString(((Mesh)shape).fileName);
+
+            putShapes(shape.children != null ? shape.children :
+                      Collections.<Shape>emptyList(),
+                      classes, materialIndex);
+        }
+    }
+
+    /** make room for n more bytes in buffer */
+    private void room(int n) throws IOException
+    {
+        if (buffer.remaining() < n)
+            flush();
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void putInt(int i) throws IOException
+    {
+        room(4);
+        buffer.putInt(i);
+    }
+
+    private void putBoolean(boolean b) throws IOException
+    {
+        room(1);
+        buffer.put((byte)(b ? 1 : 0));
+    }
+
+    private void putDouble(double d) throws IOException
+    {
+        room(8);
+        buffer.putDouble(d);
+    }
+
+    private void putTuple(Tuple3d t) throws IOException
+    {
+        room(24);
+        buffer.putDouble(t.x);
+        buffer.putDouble(t.y);
+        buffer.putDouble(t.z);
+    }
+
+    private void putMatrix(Matrix4d m) throws IOException
+    {
+        room(128);
+        buffer.putDouble(m.m00); buffer.putDouble(m.m01);
+        buffer.putDouble(m.m02); buffer.putDouble(m.m03);
+        buffer.putDouble(m.m10); buffer.putDouble(m.m11);
+        buffer.putDouble(m.m12); buffer.putDouble(m.m13);
+        buffer.putDouble(m.m20); buffer.putDouble(m.m21);
+        buffer.putDouble(m.m22); buffer.putDouble(m.m23);
+        buffer.putDouble(m.m30); buffer.putDouble(m.m31);
+        buffer.putDouble(m.m32); buffer.putDouble(m.m33);
+    }
+
+    private void putString(String s) throws IOException
+    {
+        if (s == null) {
+            putInt(-1);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > BUFFER_SIZE - 4)
+            throw new IOException("String too long to save: " + s);
+
+        room(4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    //------------------------------------------------------------------------
+    // Loading
+
+    private void read(Scene s) throws IOException
+    {
+        if (size < 8 || buffer.getInt() != MAGIC)
+            throw new IOException("Not a scene snapshot");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported scene snapshot version " +
+                                  version);
+
+        // Camera
+        if (getBoolean()) {
+            Camera c = new Camera();
+            getTuple(c.eye);
+            getTuple(c.look);
+            getTuple(c.up);
+            c.fovy = getDouble();
+            c.near = getDouble();
+            s.camera = c;
+        }
+
+        // Materials (replacing the default material, which was saved too)
+        int count = getInt();
+        Material[] materials = new Material[count];
+        s.materials.clear();
+        s.materialTable.clear();
+        for (int i = 0; i < count; i++) {
+            Material m = new Material();
+            m.name        = getString();
+            getTuple(m.ambient);
+            getTuple(m.diffuse);
+            getTuple(m.specular);
+            getTuple(m.transparent);
+            m.index       = getDouble();
+            m.shininess   = getDouble();
+            m.textureFileName = getString();
+            m.textureScaleU   = getDouble();
+            m.textureScaleV   = getDouble();
+
+            if (getBoolean()) {
+                m.checkerColor1 = getTuple(new Vector3d());
+                m.checkerColor2 = getTuple(new Vector3d());
+            }
+
+            if (getBoolean()) {
+                int width  = getInt();
+                int height = getInt();
+                RGBImage image = new RGBImage(width, height);
+                image.gamma = getDouble();
+                for (int k = 0; k < image.length; k++) {
+                    need(4);
+                    image.data[k] = buffer.getFloat();
+                }
+                m.textureImage = image;
+            }
+
+            materials[i] = m;
+            s.addMaterial(m);
+        }
+
+        // Lights
+        count = getInt();
+        for (int i = 0; i < count; i++) {
+            Light l = new Light();
+            l.name = getString();
+            if (getBoolean()) {
+                l.direction = getTuple(new Vector3d());
+                l.position  = null;
+            } else {
+                getTuple(l.position);
+            }
+            getTuple(l.color);
+            getTuple(l.attenuation);
+            s.lights.add(l);
+            s.addName(l);
+        }
+
+        // Shapes
+        count = getInt();
+        List<Supplier<Shape>> types = new ArrayList<Supplier<Shape>>();
+        for (int i = 0; i < count; i++) {
+            String name = getString();
+            Supplier<Shape> type = shapeTypes.get(name);
+            if (type == null)
+                throw new IOException("Unknown shape " + name +
+                                      " in scene snapshot");
+            types.add(type);
+        }
+
+        getShapes(s, s.objects, getInt(), types, materials);
+    }
+
+    /** read count shapes (and their children) into level, a level of the
+     *  object hierarchy of s
+     */
+    private void getShapes(Scene s, List<Shape> level, int count,
+                           List<Supplier<Shape>> types, Material[] materials)
+        throws IOException
+    {
+        for (int i = 0; i < count; i++) {
+            Shape shape = types.get(getInt()).get();
+            shape.name = getString();
+
+            Material m = materials[getInt()];
+            shape.materialName = m.name;
+            shape.materialRef  = m;
+
+            getMatrix(shape.M);
+            getMatrix(shape.MInverse);
+            getMatrix(shape.MTInverse);
+
+            if (shape instanceof Mesh)
+                ((Mesh)shape).load(getString());
+
+            shape.parent = level;
+            level.add(shape);
+            s.addName(shape);
+
+            int children = getInt();
+            if (children > 0) {
+                shape.children = new ArrayList<Shape>();
+                getShapes(s, shape.children, children, types, materials);
+            }
+        }
+    }
+
+    /** map the part of the file starting at position */
+    private void map(long position) throws IOException
+    {
+        base   = position;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                             Math.min(WINDOW_SIZE, size - position));
+    }
+
+    /** make sure the next n bytes of the file are in buffer */
+    private void need(int n) throws IOException
+    {
+        if (buffer.remaining() < n) {
+            long position = base + buffer.position();
+            if (size - position < n)
+                throw new EOFException("Scene snapshot is truncated");
+            map(position);
+        }
+    }
+
+    private int getInt() throws IOException
+    {
+        need(4);
+        return buffer.getInt();
+    }
+
+    private boolean getBoolean() throws IOException
+    {
+        need(1);
+        return buffer.get() != 0;
+    }
+
+    private double getDouble() throws IOException
+    {
+        need(8);
+        return buffer.getDouble();
+    }
+
+    private <T extends Tuple3d> T getTuple(T t) throws IOException
+    {
+        need(24);
+        t.x = buffer.getDouble();
+        t.y = buffer.getDouble();
+        t.z = buffer.getDouble();
+        return t;
+    }
+
+    private void getMatrix(Matrix4d m) throws IOException
+    {
+        need(128);
+        m.m00 = buffer.getDouble(); m.m01 = buffer.getDouble();
+        m.m02 = buffer.getDouble(); m.m03 = buffer.getDouble();
+        m.m10 = buffer.getDouble(); m.m11 = buffer.getDouble();
+        m.m12 = buffer.getDouble(); m.m13 = buffer.getDouble();
+        m.m20 = buffer.getDouble(); m.m21 = buffer.getDouble();
+        m.m22 = buffer.getDouble(); m.m23 = buffer.getDouble();
+        m.m30 = buffer.getDouble(); m.m31 = buffer.getDouble();
+        m.m32 = buffer.getDouble(); m.m33 = buffer.getDouble();
+    }
+
+    private String getString() throws IOException
+    {
+        int length = getInt();
+        if (length < 0)
+            return null;
+
+        need(length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
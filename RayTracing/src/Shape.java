@@ -12,26 +12,49 @@ import java.lang.reflect.*;
 abstract class Shape extends RaytracerObject
 {
     // stores the name of the material associatef with this object
-    String materialName = new String();
+    String materialName = "";
 
     // a reference to the associated material (this may be set after the
     // object is created (allowing to specify materials after the object
-    // has been created )
+    // has been created, see Scene.setup()) )
     Material materialRef = null;
 
-    // Object transformation M
+    // Object transformation M (null for shapes that keep their
+    // transformation in another form, see Instance)
     Matrix4d M;
     // Inverse of M
     Matrix4d MInverse;
     // Transpose Inverse of M (just the 3x3 part is transposed)
     Matrix4d MTInverse;
 
-    // Hierarchical object management
-    Vector<Shape> parent = null;
-    Vector<Shape> children = new Vector<Shape>();
+    // Index of this shape's class, for counting tests per kind of shape
+    // (see RenderStats), or -1 for shapes that hold other shapes (which
+    // count their own tests)
+    final int kind = holdsShapes() ? -1 : RenderStats.kindOf(getClass());
+
+    // Hierarchical object management (children is made when the first
+    // child is added)
+    List<Shape> parent = null;
+    List<Shape> children = null;
+
+    // World bounds around this shape and all of its descendants, as in
+    // BVH.nodeBounds (set up by the scene, only for shapes with children)
+    double[] groupBounds = null;
 
     //------------------------------------------------------------------------
 
+    /** constructor for shapes made in code (identity transformation) */
+    public Shape()
+    {
+	M = new Matrix4d();
+	MInverse = new Matrix4d();
+	MTInverse = new Matrix4d();
+
+	M.setIdentity();
+	MInverse.setIdentity();
+	MTInverse.setIdentity();
+    }
+
     /** enforcing the presence of this constructor */
     public Shape(StreamTokenizer tokenizer)
            throws ParseException, IOException, NoSuchMethodException,
@@ -53,15 +76,117 @@ abstract class Shape extends RaytracerObject
     /** computes the intersection of the ray with the scene and
      *  returns true if this object was hit, false if not
      *
+     * The ray is given in object space (see toObjectSpace()) and is
+     * not modified, so the same ray can be shared between threads
+     *
      * If an object is hit, the intersection holds the details of the
      * hit point that has the smallest t value above minT
      *
      * If computeAllFields is false, only the t value is computed (no
-     * point, normal, texture coordinates)
+     * point, normal, texture coordinates).  It is only set for the hit
+     * found by a call without it, with the same ray and intersection:
+     * shapes made of parts (such as Mesh) only test again the part that
+     * was hit then (which they leave in intersection.primitive)
      */
     abstract boolean hit(Ray r, ISect intersection,
 			 boolean computeAllFields, double minT);
 
+    /** returns true if the object space ray r hits this shape with a t
+     *  value between minT and maxT (used for shadow rays, where any hit
+     *  will do)
+     *
+     * The default uses hit(), with scratch as space for its results;
+     * shapes can override this with a cheaper test that stops as soon as
+     * it finds a hit and computes nothing else
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
+    {
+	return hit(r, scratch, false, minT) && scratch.getT() <= maxT;
+    }
+
+    /** the fraction of light (in R, G and B) that this shape lets
+     *  through, once occludes() has found it in the way of a shadow ray:
+     *  the Kt of its material (scratch is the ISect given to occludes())
+     */
+    Vector3d transmittance(ISect scratch)
+    {
+	return materialRef.getKt();
+    }
+
+    /** true if hit() and occludes() only test other shapes, so testing
+     *  this shape isn't counted (see BVH.closestHit())
+     */
+    boolean holdsShapes()
+    {
+	return false;
+    }
+
+    /** compute the object space bounding box of this shape, stored as
+     *  (minX, minY, minZ, maxX, maxY, maxZ)
+     */
+    abstract void getObjectBounds(double[] bounds);
+
+    /** compute the world space bounding box of this shape (the bounds of
+     *  its transformed object space box), stored in bounds[offset] to
+     *  bounds[offset+5] in the same order as getObjectBounds()
+     */
+    public void getWorldBounds(double[] bounds, int offset)
+    {
+	double[] ob = new double[6];
+	getObjectBounds(ob);
+	transformBounds(ob, M, bounds, offset);
+    }
+
+    /** the bounds of the box ob (as in getObjectBounds()) transformed by
+     *  M, stored in bounds[offset] to bounds[offset+5]
+     */
+    static void transformBounds(double[] ob, Matrix4d M, double[] bounds,
+				int offset)
+    {
+	for (int k = 0; k < 3; k++) {
+	    bounds[offset+k]   = Double.POSITIVE_INFINITY;
+	    bounds[offset+k+3] = Double.NEGATIVE_INFINITY;
+	}
+
+	// Transform each corner of the object space box
+	Point3d corner = new Point3d();
+	for (int c = 0; c < 8; c++) {
+	    corner.set((c & 1) == 0 ? ob[0] : ob[3],
+		       (c & 2) == 0 ? ob[1] : ob[4],
+		       (c & 4) == 0 ? ob[2] : ob[5]);
+	    M.transform(corner);
+
+	    bounds[offset]   = Math.min(bounds[offset],   corner.x);
+	    bounds[offset+1] = Math.min(bounds[offset+1], corner.y);
+	    bounds[offset+2] = Math.min(bounds[offset+2], corner.z);
+	    bounds[offset+3] = Math.max(bounds[offset+3], corner.x);
+	    bounds[offset+4] = Math.max(bounds[offset+4], corner.y);
+	    bounds[offset+5] = Math.max(bounds[offset+5], corner.z);
+	}
+    }
+
+    /** transform the world space ray r into object space, storing the
+     *  result in objRay (r is not modified)
+     *
+     * t values along objRay are the same as along r, since the
+     * transformation is affine
+     */
+    public void toObjectSpace(Ray r, Ray objRay)
+    {
+	MInverse.transform(r.getPoint(), objRay.getPoint());
+	MInverse.transform(r.getDirection(), objRay.getDirection());
+    }
+
+    /** transform the hit point and normal found by hit() for the object
+     *  space ray into the space of r (the ray given to toObjectSpace());
+     *  the normal is not normalized
+     */
+    void toWorldSpace(Ray r, ISect intersection)
+    {
+	M.transform(intersection.getHitPoint());
+	MTInverse.transform(intersection.getNormal());
+    }
+
     // -----------------------------------------------------------------------
 
     public String   getMaterialName() { return materialName; }
@@ -82,14 +207,13 @@ abstract class Shape extends RaytracerObject
 	// Compute inverse
 	MInverse.invert(M);
 
-	// Compute inverse transpose
-	Matrix3d invRS = new Matrix3d();
-	MInverse.getRotationScale(invRS);
-	invRS.transpose();
-
-	Vector3d translation = new Vector3d();
-	MInverse.get(translation);
-	MTInverse.set(invRS, translation, 1.0);
+	// Compute inverse transpose (of the 3x3 part, keeping the
+	// translation of the inverse)
+	Matrix4d I = MInverse, T = MTInverse;
+	T.m00 = I.m00;  T.m01 = I.m10;  T.m02 = I.m20;  T.m03 = I.m03;
+	T.m10 = I.m01;  T.m11 = I.m11;  T.m12 = I.m21;  T.m13 = I.m13;
+	T.m20 = I.m02;  T.m21 = I.m12;  T.m22 = I.m22;  T.m23 = I.m23;
+	T.m30 = 0;      T.m31 = 0;      T.m32 = 0;      T.m33 = 1;
     }
 
     public void print(PrintStream out)
@@ -97,8 +221,10 @@ abstract class Shape extends RaytracerObject
 	super.print(out);
 	
 	out.println("Material : " + materialName);
-	out.println("M        : " + M);
-	out.println("Minv     : " + MInverse);
-	out.println("MTinv    : " + MTInverse);
+	if (M != null) {
+	    out.println("M        : " + M);
+	    out.println("Minv     : " + MInverse);
+	    out.println("MTinv    : " + MTInverse);
+	}
     }
 }
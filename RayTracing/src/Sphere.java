@@ -12,6 +12,11 @@ class Sphere extends Shape
 {
     public static String keyword = "sphere";
 
+    /** constructor for shapes made in code */
+    public Sphere()
+    {
+    }
+
     /** constructor from tokenizer */
     public Sphere(StreamTokenizer tokenizer)
 	throws ParseException, IOException, NoSuchMethodException,
@@ -25,18 +30,31 @@ class Sphere extends Shape
 
     // -----------------------------------------------------------------------
 
+    /** bounds of the unit sphere at the origin */
+    void getObjectBounds(double[] bounds)
+    {
+	double[] b = { -1, -1, -1, 1, 1, 1 };
+	System.arraycopy(b, 0, bounds, 0, 6);
+    }
+
+    // -----------------------------------------------------------------------
+
     /** computes the ray intersection point of a sphere at the origin with
      *  radius 1
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	double dirLength = r.getDirection().length();
-	r.getDirection().normalize();
+	Point3d  p = r.getPoint();
+	Vector3d dir = r.getDirection();
+
+	// work with a normalized copy of the direction (r is left alone)
+	double dirLength = dir.length();
+	double norm = 1.0/Math.sqrt(dir.x*dir.x + dir.y*dir.y + dir.z*dir.z);
+	double dx = dir.x*norm, dy = dir.y*norm, dz = dir.z*norm;
 	minT *= dirLength;
-	Vector3d v = new Vector3d(r.getPoint());
 
-	double b   = -v.dot(r.getDirection());
-	double d   = b*b - v.lengthSquared()+1;
+	double b   = -(p.x*dx + p.y*dy + p.z*dz);
+	double d   = b*b - (p.x*p.x + p.y*p.y + p.z*p.z)+1;
 
 	if (d<0.0) return false;
 
@@ -52,9 +70,9 @@ class Sphere extends Shape
 	if (all) {
 	    Point3d hitPoint = intersection.getHitPoint();
 
-	    hitPoint.set(r.getDirection());
+	    hitPoint.set(dx, dy, dz);
 	    hitPoint.scale(intersection.t);
-	    hitPoint.add(r.getPoint());
+	    hitPoint.add(p);
 	    
 	    intersection.getNormal().set(hitPoint);
 	    intersection.getNormal().normalize();
@@ -67,6 +85,29 @@ class Sphere extends Shape
 	return true;
     }
 
+    /** checks whether the ray crosses the sphere between minT and maxT
+     *  (solving for t along the unnormalized ray, without computing
+     *  anything else)
+     */
+    boolean occludes(Ray r, ISect scratch, double minT, double maxT)
+    {
+	Point3d  p = r.getPoint();
+	Vector3d dir = r.getDirection();
+
+	double a = dir.x*dir.x + dir.y*dir.y + dir.z*dir.z;
+	double b = -(p.x*dir.x + p.y*dir.y + p.z*dir.z);
+	double d = b*b - a*(p.x*p.x + p.y*p.y + p.z*p.z - 1);
+
+	if (d < 0.0) return false;
+
+	d = Math.sqrt(d);
+	double firstT  = (b - d) / a;
+	double secondT = (b + d) / a;
+
+	return (firstT > minT && firstT <= maxT) ||
+	       (secondT > minT && secondT <= maxT);
+    }
+
     private void uvSphere(ISect intersection)
     {
 	double phi, epsilon = 1e-6;
@@ -103,8 +144,11 @@ class Sphere extends Shape
 	intersection.getDpDu().set(-ipoint.y, ipoint.x, 0);
 	intersection.getDpDu().normalize();
 	
-	intersection.getDpDv().cross(new Vector3d(ipoint),
-				     intersection.getDpDu());
+	// dPdV = ipoint x dPdU
+	Vector3d dpdu = intersection.getDpDu();
+	intersection.getDpDv().set(ipoint.y*dpdu.z - ipoint.z*dpdu.y,
+				   dpdu.x*ipoint.z - dpdu.z*ipoint.x,
+				   ipoint.x*dpdu.y - ipoint.y*dpdu.x);
 	intersection.getDpDv().normalize();
     }
 }
@@ -0,0 +1,54 @@
+/* class TileRenderer
+ * Renders a rectangular region of the image, splitting it into tiles
+ * that are scheduled on a fork/join pool (idle workers steal the
+ * remaining halves of other workers' regions)
+ */
+import java.util.concurrent.*;
+
+class TileRenderer extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    // Scene being rendered
+    Scene scene;
+
+    // Region of the image: columns [x0, x1), rows [y0, y1)
+    int x0, y0, x1, y1;
+
+    // Maximum tile side length (regions this size or smaller are rendered
+    // directly)
+    int tileSize;
+
+    public TileRenderer(Scene scene, int x0, int y0, int x1, int y1,
+                        int tileSize)
+    {
+        this.scene    = scene;
+        this.x0       = x0;
+        this.y0       = y0;
+        this.x1       = x1;
+        this.y1       = y1;
+        this.tileSize = tileSize;
+    }
+
+    /** split the region in half along its longer side until it is no
+     *  bigger than a tile, then render it
+     */
+    protected void compute()
+    {
+        int w = x1 - x0, h = y1 - y0;
+
+        if (w <= tileSize && h <= tileSize) {
+            scene.renderTile(x0, y0, x1, y1);
+        } else if (w >= h) {
+            // split on a tile boundary so tiles are the same no matter
+            // which thread ends up rendering them
+            int mid = x0 + ((w / tileSize + 1) / 2) * tileSize;
+            invokeAll(new TileRenderer(scene, x0, y0, mid, y1, tileSize),
+                      new TileRenderer(scene, mid, y0, x1, y1, tileSize));
+        } else {
+            int mid = y0 + ((h / tileSize + 1) / 2) * tileSize;
+            invokeAll(new TileRenderer(scene, x0, y0, x1, mid, tileSize),
+                      new TileRenderer(scene, x0, mid, x1, y1, tileSize));
+        }
+    }
+}
@@ -20,6 +20,16 @@ class Trace
             int width  = 128;
             int height = 128;
 
+            int threads  = Runtime.getRuntime().availableProcessors();
+            int tileSize = 32;
+            boolean bruteForce = false;
+            boolean compact    = false;
+            boolean stream     = false;
+            boolean stats      = false;
+            String heatmapFileName = null;
+            String snapshotFileName = null;
+            boolean heatmapTests   = false;
+
             if (arguments.length < 1) {
                 printUsage();
                 System.exit(0);
@@ -31,6 +41,42 @@ class Trace
                 } else if (arguments[i].compareTo("-res")==0) {
                     width  = (new Integer(arguments[++i])).intValue();
                     height = (new Integer(arguments[++i])).intValue();
+                } else if (arguments[i].compareTo("-threads")==0) {
+                    threads  = Integer.parseInt(arguments[++i]);
+                    if (threads < 1) {
+                        printUsage();
+                        System.exit(0);
+                    }
+                } else if (arguments[i].compareTo("-tile")==0) {
+                    tileSize = Integer.parseInt(arguments[++i]);
+                    if (tileSize < 1) {
+                        printUsage();
+                        System.exit(0);
+                    }
+                } else if (arguments[i].compareTo("-bruteforce")==0) {
+                    bruteForce = true;
+                } else if (arguments[i].compareTo("-stream")==0) {
+                    stream = true;
+                } else if (arguments[i].compareTo("-heatmap")==0) {
+                    heatmapFileName = arguments[++i];
+                } else if (arguments[i].compareTo("-heatmetric")==0) {
+                    String metric = arguments[++i];
+                    if (metric.compareTo("tests")==0) {
+                        heatmapTests = true;
+                    } else if (metric.compareTo("time")==0) {
+                        heatmapTests = false;
+                    } else {
+                        printUsage();
+                        System.exit(0);
+                    }
+                } else if (arguments[i].compareTo("-save")==0) {
+                    snapshotFileName = arguments[++i];
+                } else if (arguments[i].compareTo("-compact")==0) {
+                    compact = true;
+                } else if (arguments[i].compareTo("-nomeshcache")==0) {
+                    MeshCache.enabled = false;
+                } else if (arguments[i].compareTo("-stats")==0) {
+                    stats = true;
                 } else if (arguments[i].compareTo("-quiet")==0) {
                     verbose = false;
                 } else if (arguments[i].charAt(0) == '-') {
@@ -41,21 +87,75 @@ class Trace
                 }
             }
 
+            // (a heatmap keeps the cost of every pixel, which streaming is
+            // meant to avoid)
+            if (stream && heatmapFileName != null) {
+                System.err.println("-heatmap can't be used with -stream");
+                printUsage();
+                System.exit(0);
+            }
+
+            // (snapshots keep shapes as they are parsed, not compact sets)
+            if (compact && snapshotFileName != null) {
+                System.err.println("-compact can't be used with -save");
+                printUsage();
+                System.exit(0);
+            }
+
             try {
                 Scene s = new Scene();
+                s.setThreads(threads);
+                s.setTileSize(tileSize);
+                s.setBruteForce(bruteForce);
+                s.setCompact(compact);
+                s.setHeatmap(heatmapFileName != null, heatmapTests);
                 Parser p = new Parser(s);
+
+                // Watch the render over JMX
+                if (stats)
+                    RenderMonitor.register(s);
 		
-                // Parse scene file
-                p.readFile(inputFileName);
+                // Parse scene file (or load a saved scene)
+                long startTime = System.nanoTime();
+                boolean snapshot = SceneSnapshot.isSnapshot(inputFileName);
+                if (snapshot && compact) {
+                    System.err.println("-compact can't be used with a " +
+                                       "scene snapshot");
+                    printUsage();
+                    System.exit(0);
+                }
+                if (snapshot)
+                    SceneSnapshot.load(s, inputFileName);
+                else
+                    p.readFile(inputFileName);
+                s.stats.parseTime = System.nanoTime() - startTime;
 		
                 // Set up the scene
                 s.setup();
+
+                // Save it, to be loaded instead of parsed next time
+                if (snapshotFileName != null)
+                    SceneSnapshot.save(s, snapshotFileName);
 		
-                // Render the image
-                RGBImage i = s.render(width, height, verbose);
-		
-                // Save the image
-                i.write(outputFileName);
+                if (stream) {
+                    // Render the image straight into the file
+                    s.renderToFile(width, height, outputFileName, verbose);
+                } else {
+                    // Render the image
+                    RGBImage i = s.render(width, height, verbose);
+
+                    // Save the image
+                    startTime = System.nanoTime();
+                    i.write(outputFileName);
+                    s.stats.writeTime = System.nanoTime() - startTime;
+                }
+
+                // Save the cost of each pixel
+                if (heatmapFileName != null)
+                    s.getHeatmap().write(heatmapFileName);
+
+                if (stats)
+                    s.getStats().print(System.out);
             } catch (InvocationTargetException e) {
                 throw e.getTargetException();
             }
@@ -74,5 +174,11 @@ class Trace
         System.out.println("Usage: ");
         System.out.println("java Trace <fileName> [-res <width height>] "+
                            " [-out <outputFileName>] [-quiet] ");
+        System.out.println("                      [-threads <count>] "+
+                           " [-tile <tileSize>] [-bruteforce] ");
+        System.out.println("                      [-stream] [-stats] "+
+                           " [-heatmap <fileName>] [-heatmetric time|tests] ");
+        System.out.println("                      [-save <snapshotFileName>] "+
+                           " [-nomeshcache] [-compact] ");
     }
 }